@@ -0,0 +1,62 @@
+package main.java.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.java.compression.KMeansClusterer;
+import main.java.compression.PackedVectors;
+import main.java.compression.TrainingReservoir;
+
+// Codebook training as CodebookGenerator runs it: k-means++ seeding plus
+// the clustering iterations on one channel of a filled reservoir.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ClusteringBenchmark {
+    private static final int MAX_ITERATIONS = 20;
+    private static final double CONVERGENCE_THRESHOLD = 0.01;
+
+    @Param({"64", "256"})
+    public int codebookSize;
+
+    @Param({"16384", "65536"})
+    public int reservoirSize;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private TrainingReservoir reservoir;
+    private KMeansClusterer clusterer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        reservoir = new TrainingReservoir(reservoirSize, 3, 2, 2, new Random(5));
+        for (int seed = 0; seed < 4; seed++) {
+            reservoir.addImage(SyntheticImages.image(512, 512, seed));
+        }
+        clusterer = new KMeansClusterer(parallelism, MAX_ITERATIONS, CONVERGENCE_THRESHOLD);
+    }
+
+    @Benchmark
+    public KMeansClusterer.Result kmeans() {
+        PackedVectors vectors = reservoir.getVectors(0);
+        double[][] initial = clusterer.initialize(vectors, reservoir.size(), codebookSize, new Random(6));
+        return clusterer.cluster(vectors, reservoir.size(), initial);
+    }
+}
@@ -0,0 +1,133 @@
+package main.java.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.java.compression.FlatCodebook;
+import main.java.compression.ProjectionIndex;
+import main.java.compression.TreeCodebook;
+
+// Nearest-codeword search per block, for each search structure. Forks run
+// with the Vector API module, so flatSearch uses the SIMD kernel and
+// scalarFlatSearch the plain loop; setup checks that both pick the same
+// codewords as the projection index.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class CodebookSearchBenchmark {
+    private static final int QUERIES = 4096;
+    private static final int VECTOR_SIZE = 4;
+
+    @Param({"64", "256", "1024"})
+    public int codebookSize;
+
+    private float[] queries;
+    private FlatCodebook flat;
+    private FlatCodebook scalarFlat;
+    private ProjectionIndex projection;
+    private TreeCodebook tree;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BufferedImage image = SyntheticImages.image(512, 512, 2);
+        double[][] codebook = SyntheticImages.codebook(image, 1, codebookSize, 3);
+        flat = new FlatCodebook(codebook);
+        scalarFlat = new FlatCodebook(codebook, false);
+        projection = new ProjectionIndex(codebook);
+        tree = new TreeCodebook(treeNodes(codebook));
+
+        Random random = new Random(4);
+        queries = new float[QUERIES * VECTOR_SIZE];
+        for (int q = 0; q < QUERIES; q++) {
+            int x = random.nextInt(image.getWidth() / 2) * 2;
+            int y = random.nextInt(image.getHeight() / 2) * 2;
+            queries[q * VECTOR_SIZE] = (image.getRGB(x, y) >> 8) & 0xFF;
+            queries[q * VECTOR_SIZE + 1] = (image.getRGB(x + 1, y) >> 8) & 0xFF;
+            queries[q * VECTOR_SIZE + 2] = (image.getRGB(x, y + 1) >> 8) & 0xFF;
+            queries[q * VECTOR_SIZE + 3] = (image.getRGB(x + 1, y + 1) >> 8) & 0xFF;
+        }
+
+        for (int q = 0; q < QUERIES; q++) {
+            int expected = scalarFlat.findNearest(queries, q * VECTOR_SIZE);
+            if (flat.findNearest(queries, q * VECTOR_SIZE) != expected
+                    || projection.findNearest(queries, q * VECTOR_SIZE) != expected) {
+                throw new IllegalStateException("Searches disagree on query " + q);
+            }
+        }
+    }
+
+    // Leaves are the codebook; every inner node is the mean of its children,
+    // which is what LBG splitting converges towards.
+    private static double[][] treeNodes(double[][] leaves) {
+        double[][] nodes = new double[2 * leaves.length][];
+        for (int i = 0; i < leaves.length; i++) {
+            nodes[leaves.length + i] = leaves[i].clone();
+        }
+        for (int node = leaves.length - 1; node >= 1; node--) {
+            nodes[node] = new double[VECTOR_SIZE];
+            for (int j = 0; j < VECTOR_SIZE; j++) {
+                nodes[node][j] = (nodes[2 * node][j] + nodes[2 * node + 1][j]) / 2;
+            }
+        }
+        nodes[0] = new double[VECTOR_SIZE];
+        return nodes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int flatSearch() {
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            sum += flat.findNearest(queries, q * VECTOR_SIZE);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int scalarFlatSearch() {
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            sum += scalarFlat.findNearest(queries, q * VECTOR_SIZE);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int projectionSearch() {
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            sum += projection.findNearest(queries, q * VECTOR_SIZE);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int treeSearch() {
+        int sum = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            sum += tree.findNearest(queries, q * VECTOR_SIZE);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,75 @@
+package main.java.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.java.compression.ColorSpaceConverter;
+import main.java.compression.YuvPlanes;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorSpaceBenchmark {
+    @Param({"256", "512", "1024"})
+    public int imageSize;
+
+    private final ColorSpaceConverter converter = new ColorSpaceConverter();
+    private BufferedImage rgbImage;
+    private BufferedImage yuvImage;
+    private BufferedImage subsampledYuv;
+    private YuvPlanes planes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rgbImage = SyntheticImages.image(imageSize, imageSize, 7);
+        yuvImage = converter.rgbToYuv(rgbImage);
+        subsampledYuv = converter.rgbToSubsampledYuv(rgbImage);
+        planes = converter.toPlanarYuv(rgbImage);
+    }
+
+    @Benchmark
+    public BufferedImage rgbToYuv() {
+        return converter.rgbToYuv(rgbImage);
+    }
+
+    @Benchmark
+    public BufferedImage yuvToRgb() {
+        return converter.yuvToRgb(yuvImage);
+    }
+
+    @Benchmark
+    public BufferedImage rgbToSubsampledYuv() {
+        return converter.rgbToSubsampledYuv(rgbImage);
+    }
+
+    @Benchmark
+    public BufferedImage subsampledYuvToRgb() {
+        return converter.subsampledYuvToRgb(subsampledYuv);
+    }
+
+    @Benchmark
+    public YuvPlanes toPlanarYuv() {
+        return converter.toPlanarYuv(rgbImage);
+    }
+
+    @Benchmark
+    public BufferedImage fromPlanarYuv() {
+        return converter.fromPlanarYuv(planes);
+    }
+}
@@ -0,0 +1,90 @@
+package main.java.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.java.compression.ColorSpaceConverter;
+import main.java.compression.CompressedImage;
+import main.java.compression.ImageCompressor;
+import main.java.compression.VQConfig;
+import main.java.compression.YuvPlanes;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class CompressionBenchmark {
+    private static final String[] RGB_CHANNELS = {"red", "green", "blue"};
+
+    @Param({"256", "512", "1024"})
+    public int imageSize;
+
+    @Param({"64", "256", "1024"})
+    public int codebookSize;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    // Square blocks; 4x4 blocks carry a quarter of the indices of 2x2 ones.
+    @Param({"2", "4"})
+    public int blockSize;
+
+    private BufferedImage image;
+    private YuvPlanes planes;
+    private Map<String, double[][]> rgbCodebooks;
+    private Map<String, double[][]> yuvCodebooks;
+    private CompressedImage encoded;
+    private ImageCompressor compressor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = SyntheticImages.image(imageSize, imageSize, 1);
+        planes = new ColorSpaceConverter().toPlanarYuv(image);
+        rgbCodebooks = new HashMap<>();
+        yuvCodebooks = new HashMap<>();
+        for (int c = 0; c < RGB_CHANNELS.length; c++) {
+            double[][] codebook = SyntheticImages.codebook(image, c, codebookSize, c + 1, blockSize, blockSize);
+            rgbCodebooks.put(RGB_CHANNELS[c], codebook);
+            yuvCodebooks.put(YuvPlanes.CHANNELS[c], codebook);
+        }
+        compressor = new ImageCompressor(parallelism, true, new VQConfig(blockSize, blockSize, codebookSize));
+        encoded = compressor.encodeRGB(image, rgbCodebooks);
+    }
+
+    @Benchmark
+    public BufferedImage compressRGB() {
+        return compressor.compressRGB(image, rgbCodebooks);
+    }
+
+    @Benchmark
+    public CompressedImage encodeRGB() {
+        return compressor.encodeRGB(image, rgbCodebooks);
+    }
+
+    @Benchmark
+    public CompressedImage encodePlanarYUV() {
+        return compressor.encodeYUV(planes, yuvCodebooks);
+    }
+
+    @Benchmark
+    public BufferedImage decode() {
+        return compressor.decode(encoded);
+    }
+}
@@ -0,0 +1,72 @@
+package main.java.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.java.compression.ImageCompressor;
+import main.java.compression.VQConfig;
+import main.java.compression.utils.CompressionMetrics;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private static final String[] RGB_CHANNELS = {"red", "green", "blue"};
+
+    @Param({"256", "512", "1024"})
+    public int imageSize;
+
+    private final CompressionMetrics metrics = new CompressionMetrics();
+    private final CompressionMetrics parallelMetrics = new CompressionMetrics(Runtime.getRuntime().availableProcessors());
+    private final CompressionMetrics sampledMetrics = new CompressionMetrics(1, 8);
+    private BufferedImage original;
+    private BufferedImage compressed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        original = SyntheticImages.image(imageSize, imageSize, 8);
+        Map<String, double[][]> codebooks = new HashMap<>();
+        for (int c = 0; c < RGB_CHANNELS.length; c++) {
+            codebooks.put(RGB_CHANNELS[c], SyntheticImages.codebook(original, c, 256, c + 1));
+        }
+        compressed = new ImageCompressor(1, false, new VQConfig(2, 2, 256)).compressRGB(original, codebooks);
+    }
+
+    @Benchmark
+    public double psnr() {
+        return metrics.calculatePSNR(original, compressed);
+    }
+
+    @Benchmark
+    public CompressionMetrics.Quality measure() {
+        return metrics.measure(original, compressed);
+    }
+
+    @Benchmark
+    public CompressionMetrics.Quality measureParallel() {
+        return parallelMetrics.measure(original, compressed);
+    }
+
+    @Benchmark
+    public CompressionMetrics.Quality measureSampled() {
+        return sampledMetrics.measure(original, compressed);
+    }
+}
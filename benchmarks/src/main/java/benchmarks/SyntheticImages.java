@@ -0,0 +1,61 @@
+package main.java.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+// Deterministic test inputs so the benchmarks run without the data/ sets:
+// smooth gradients with some texture and noise, which quantize roughly like
+// photographs, and codebooks drawn from their blocks.
+final class SyntheticImages {
+    private static final int BLOCK_WIDTH = 2;
+    private static final int BLOCK_HEIGHT = 2;
+
+    private SyntheticImages() {
+    }
+
+    static BufferedImage image(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        double phase = random.nextDouble() * Math.PI;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = (int) (128 + 100 * Math.sin(x / 17.0 + phase)) + random.nextInt(12);
+                int green = (int) (128 + 100 * Math.cos(y / 23.0 + phase)) + random.nextInt(12);
+                int blue = ((x + y) / 5 + ((x / 8 + y / 8) % 2) * 32) % 256;
+                image.setRGB(x, y, (clamp(red) << 16) | (clamp(green) << 8) | blue);
+            }
+        }
+        return image;
+    }
+
+    // One codebook per channel, each entry a random 2x2 block of the image.
+    static double[][] codebook(BufferedImage image, int channel, int size, long seed) {
+        return codebook(image, channel, size, seed, BLOCK_WIDTH, BLOCK_HEIGHT);
+    }
+
+    static double[][] codebook(BufferedImage image, int channel, int size, long seed,
+                               int blockWidth, int blockHeight) {
+        Random random = new Random(seed);
+        int blocksPerRow = image.getWidth() / blockWidth;
+        int blockRows = image.getHeight() / blockHeight;
+        int shift = 16 - 8 * channel;
+        double[][] codebook = new double[size][blockWidth * blockHeight];
+
+        for (int i = 0; i < size; i++) {
+            int x = random.nextInt(blocksPerRow) * blockWidth;
+            int y = random.nextInt(blockRows) * blockHeight;
+            int idx = 0;
+            for (int dy = 0; dy < blockHeight; dy++) {
+                for (int dx = 0; dx < blockWidth; dx++) {
+                    codebook[i][idx++] = (image.getRGB(x + dx, y + dy) >> shift) & 0xFF;
+                }
+            }
+        }
+        return codebook;
+    }
+
+    private static int clamp(int value) {
+        return Math.min(255, Math.max(0, value));
+    }
+}
@@ -1,69 +1,273 @@
 package main.java;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import main.java.compression.CodebookGenerator;
 import main.java.compression.ColorSpaceConverter;
 import main.java.compression.ImageCompressor;
+import main.java.compression.SequenceEncoder;
+import main.java.compression.TrainingReservoir;
+import main.java.compression.TreeCodebook;
+import main.java.compression.VQConfig;
+import main.java.compression.VectorSupport;
+import main.java.compression.YuvPlanes;
+import main.java.compression.utils.BatchPipeline;
+import main.java.compression.utils.BlockSignature;
+import main.java.compression.utils.CodebookRegistry;
+import main.java.compression.utils.CodebookStore;
 import main.java.compression.utils.CompressionMetrics;
 import main.java.compression.utils.ImageLoader;
+import main.java.compression.utils.PipelineRecorder;
+import main.java.compression.utils.PipelineStage;
+import main.java.compression.utils.StripEncoder;
+import main.java.compression.utils.VQFileReader;
+import main.java.compression.utils.VQFileWriter;
 
 public class App {
     private static final String TRAINING_PATH = "./data/training";
     private static final String TEST_PATH = "./data/test";
     private static final String OUTPUT_PATH = "./output";
+    private static final String CACHE_PATH = "./cache";
+    private static final int PIPELINE_QUEUE_CAPACITY = 2;
+    private static final int TILE_SIZE = 256;
+    // Category codebook sets kept in memory at once; the rest stay on disk.
+    private static final int REGISTRY_CAPACITY = 8;
 
     public static void main(String[] args) {
         try {
             createDirectories();
             
-            ImageLoader imageLoader = new ImageLoader();
-            CodebookGenerator codebookGenerator = new CodebookGenerator();
-            ImageCompressor compressor = new ImageCompressor();
+            PipelineRecorder recorder = new PipelineRecorder();
+            ImageLoader imageLoader = new ImageLoader(recorder);
+            VQConfig config = VQConfig.load();
+            CodebookGenerator codebookGenerator = new CodebookGenerator(Runtime.getRuntime().availableProcessors(), config);
+            ImageCompressor compressor = new ImageCompressor(Runtime.getRuntime().availableProcessors(), true, config);
             ColorSpaceConverter colorConverter = new ColorSpaceConverter();
-            CompressionMetrics metrics = new CompressionMetrics();
+            CompressionMetrics metrics = new CompressionMetrics(Runtime.getRuntime().availableProcessors());
+            // Tiles must cover whole blocks of the half-resolution chroma planes.
+            int tileWidth = TILE_SIZE - TILE_SIZE % (2 * config.getBlockWidth());
+            int tileHeight = TILE_SIZE - TILE_SIZE % (2 * config.getBlockHeight());
+            VQFileWriter writer = new VQFileWriter(true, tileWidth, tileHeight, true);
+            VQFileReader reader = new VQFileReader();
+            int processors = Runtime.getRuntime().availableProcessors();
+            BatchPipeline pipeline = new BatchPipeline(imageLoader, compressor, writer, reader, metrics, recorder,
+                Math.max(2, processors / 2), 1, PIPELINE_QUEUE_CAPACITY);
 
-            // Load images and track progress
-            System.out.println("Loading images...");
+            System.out.println("Using " + config);
+            System.out.println("Codebook search: " + VectorSupport.describe());
+            System.out.println("Looking up cached codebooks...");
             long startTime = System.currentTimeMillis();
-            
-            Map<String, List<BufferedImage>> trainingImages = imageLoader.loadTrainingImages(TRAINING_PATH);
-            System.out.printf("Loaded %d training images in %ds%n", 
-                getTotalImages(trainingImages), 
-                (System.currentTimeMillis() - startTime) / 1000);
+            List<File> trainingFiles = imageLoader.listTrainingFiles(TRAINING_PATH);
 
-            Map<String, List<BufferedImage>> testImages = imageLoader.loadTestImages(TEST_PATH);
-            System.out.printf("Loaded %d test images in %ds%n", 
-                getTotalImages(testImages), 
-                (System.currentTimeMillis() - startTime) / 1000);
+            CodebookStore codebookStore = new CodebookStore(Paths.get(CACHE_PATH, "rgb_codebooks.bin"));
+            byte[] codebookKey = codebookStore.computeKey(trainingFiles, codebookGenerator.getParameterSignature());
+            Map<String, double[][]> rgbCodebooks = codebookStore.load(codebookKey);
 
-            System.out.println("\nGenerating RGB codebooks...");
-            startTime = System.currentTimeMillis();
-            Map<String, double[][]> rgbCodebooks = codebookGenerator.generateRGBCodebooks(trainingImages);
-            System.out.printf("Generated codebooks in %ds%n", 
-                (System.currentTimeMillis() - startTime) / 1000);
+            CodebookStore treeStore = new CodebookStore(Paths.get(CACHE_PATH, "rgb_tree_codebooks.bin"));
+            byte[] treeKey = treeStore.computeKey(trainingFiles, codebookGenerator.getTreeParameterSignature());
+            Map<String, double[][]> treeNodes = treeStore.load(treeKey);
+
+            CodebookStore yuvStore = new CodebookStore(Paths.get(CACHE_PATH, "yuv_codebooks.bin"));
+            byte[] yuvKey = yuvStore.computeKey(trainingFiles, codebookGenerator.getYUVParameterSignature());
+            Map<String, double[][]> yuvCodebooks = yuvStore.load(yuvKey);
+
+            if (rgbCodebooks != null && treeNodes != null && yuvCodebooks != null) {
+                System.out.printf("Loaded cached codebooks %s in %dms%n",
+                    CodebookStore.toHex(codebookKey).substring(0, 12),
+                    System.currentTimeMillis() - startTime);
+            } else {
+                System.out.println("No cached codebooks for this training set, sampling training images...");
+                startTime = System.currentTimeMillis();
+
+                TrainingReservoir reservoir = codebookGenerator.createReservoir();
+                TrainingReservoir lumaReservoir = codebookGenerator.createLumaReservoir();
+                TrainingReservoir chromaReservoir = codebookGenerator.createChromaReservoir();
+                List<BatchPipeline.Job> trainingJobs = new ArrayList<>();
+                for (int i = 0; i < trainingFiles.size(); i++) {
+                    trainingJobs.add(new BatchPipeline.Job("training", i, trainingFiles.get(i)));
+                }
+                pipeline.forEachImage(trainingJobs, (job, image) -> {
+                    reservoir.addImage(image);
+                    YuvPlanes planes = colorConverter.toPlanarYuv(image);
+                    lumaReservoir.addPlanes(planes.getWidth(), planes.getHeight(), planes.getY());
+                    chromaReservoir.addPlanes(planes.getChromaWidth(), planes.getChromaHeight(),
+                        planes.getU(), planes.getV());
+                    System.out.printf("\rProgress: %d/%d images sampled", reservoir.getImagesSeen(), trainingFiles.size());
+                });
+                System.out.printf("%nSampled %d of %d blocks from %d training images in %ds%n",
+                    reservoir.size(), reservoir.getBlocksSeen(), reservoir.getImagesSeen(),
+                    (System.currentTimeMillis() - startTime) / 1000);
+
+                if (rgbCodebooks == null) {
+                    System.out.println("\nGenerating RGB codebooks...");
+                    startTime = System.currentTimeMillis();
+                    PipelineRecorder.Timer train = recorder.start(PipelineStage.TRAIN, null);
+                    rgbCodebooks = codebookGenerator.generateRGBCodebooks(reservoir);
+                    train.items(reservoir.size()).stop();
+                    codebookStore.save(codebookKey, rgbCodebooks);
+                    System.out.printf("Generated codebooks in %ds%n", 
+                        (System.currentTimeMillis() - startTime) / 1000);
+                }
+
+                if (treeNodes == null) {
+                    System.out.println("\nGenerating RGB tree codebooks...");
+                    startTime = System.currentTimeMillis();
+                    treeNodes = new HashMap<>();
+                    PipelineRecorder.Timer train = recorder.start(PipelineStage.TRAIN, null);
+                    Map<String, TreeCodebook> trained = codebookGenerator.generateRGBTreeCodebooks(reservoir);
+                    train.items(reservoir.size()).stop();
+                    for (Map.Entry<String, TreeCodebook> entry : trained.entrySet()) {
+                        treeNodes.put(entry.getKey(), entry.getValue().getNodes());
+                    }
+                    treeStore.save(treeKey, treeNodes);
+                    System.out.printf("Generated tree codebooks in %ds%n", 
+                        (System.currentTimeMillis() - startTime) / 1000);
+                }
+
+                if (yuvCodebooks == null) {
+                    System.out.println("\nGenerating YUV codebooks...");
+                    startTime = System.currentTimeMillis();
+                    PipelineRecorder.Timer train = recorder.start(PipelineStage.TRAIN, null);
+                    yuvCodebooks = codebookGenerator.generateYUVCodebooks(lumaReservoir, chromaReservoir);
+                    train.items(lumaReservoir.size() + chromaReservoir.size()).stop();
+                    yuvStore.save(yuvKey, yuvCodebooks);
+                    System.out.printf("Generated YUV codebooks in %ds%n",
+                        (System.currentTimeMillis() - startTime) / 1000);
+                }
+            }
+
+            Map<String, TreeCodebook> treeCodebooks = new HashMap<>();
+            for (Map.Entry<String, double[][]> entry : treeNodes.entrySet()) {
+                treeCodebooks.put(entry.getKey(), new TreeCodebook(entry.getValue()));
+            }
+
+            // App --native <image> <output.vq>: encode one image at its native
+            // resolution, strip by strip, instead of running the test set.
+            if (args.length == 3 && args[0].equals("--native")) {
+                startTime = System.currentTimeMillis();
+                long bytes = new StripEncoder(compressor, writer).encodeRGB(new File(args[1]), rgbCodebooks,
+                    Paths.get(args[2]));
+                System.out.printf("Encoded %s into %s (%d bytes) in %ds%n", args[1], args[2], bytes,
+                    (System.currentTimeMillis() - startTime) / 1000);
+                return;
+            }
 
-            System.out.println("\nProcessing compressions...");
+            // App --sequence <frameDir> <outputDir>: encode the frames of a
+            // fixed-camera sequence in name order, reusing unchanged blocks.
+            if (args.length == 3 && args[0].equals("--sequence")) {
+                encodeSequence(imageLoader, new SequenceEncoder(compressor, rgbCodebooks), writer, args[1],
+                    Paths.get(args[2]));
+                return;
+            }
+
+            CodebookRegistry registry = new CodebookRegistry(Paths.get(CACHE_PATH, "categories"),
+                REGISTRY_CAPACITY, config);
+            for (Map.Entry<String, List<File>> entry : imageLoader.listTrainingFilesByCategory(TRAINING_PATH).entrySet()) {
+                String category = entry.getKey();
+                byte[] key = codebookStore.computeKey(entry.getValue(), codebookGenerator.getCategoryParameterSignature());
+                if (registry.register(category, key)) {
+                    continue;
+                }
+                System.out.printf("%nGenerating %s codebooks...%n", category);
+                startTime = System.currentTimeMillis();
+                TrainingReservoir reservoir = codebookGenerator.createReservoir();
+                BlockSignature signature = new BlockSignature();
+                List<BatchPipeline.Job> jobs = new ArrayList<>();
+                for (int i = 0; i < entry.getValue().size(); i++) {
+                    jobs.add(new BatchPipeline.Job(category, i, entry.getValue().get(i)));
+                }
+                pipeline.forEachImage(jobs, (job, image) -> {
+                    reservoir.addImage(image);
+                    signature.addImage(image);
+                });
+                PipelineRecorder.Timer train = recorder.start(PipelineStage.TRAIN, null);
+                Map<String, double[][]> codebooks = codebookGenerator.generateRGBCodebooks(reservoir);
+                train.items(reservoir.size()).stop();
+                registry.add(category, key, signature.get(), codebooks);
+                System.out.printf("Generated %s codebooks in %ds%n", category,
+                    (System.currentTimeMillis() - startTime) / 1000);
+            }
+
+            List<BatchPipeline.Job> testJobs = new ArrayList<>();
+            for (Map.Entry<String, List<File>> entry : imageLoader.listTestFiles(TEST_PATH).entrySet()) {
+                for (int i = 0; i < entry.getValue().size(); i++) {
+                    testJobs.add(new BatchPipeline.Job(entry.getKey(), i, entry.getValue().get(i)));
+                }
+            }
+
+            Map<String, double[][]> rgb = rgbCodebooks;
+            Map<String, String> routes = new ConcurrentHashMap<>();
+            Map<String, double[][]> yuv = yuvCodebooks;
+            List<BatchPipeline.Variant> variants = List.of(
+                new BatchPipeline.Variant("rgb", (image, name) -> compressor.encodeRGB(image, rgb)),
+                new BatchPipeline.Variant("yuv", (image, name) -> {
+                    PipelineRecorder.Timer preprocessTimer = recorder.start(PipelineStage.PREPROCESS, name);
+                    YuvPlanes planes = colorConverter.toPlanarYuv(image);
+                    preprocessTimer.items(1).stop();
+                    return compressor.encodeYUV(planes, yuv);
+                }),
+                new BatchPipeline.Variant("tree", (image, name) -> compressor.encodeRGBTree(image, treeCodebooks)),
+                new BatchPipeline.Variant("category", (image, name) -> {
+                    try {
+                        String category = registry.route(image);
+                        routes.put(name, category);
+                        return compressor.encodeRGB(image, registry.get(category));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+
+            System.out.printf("%nCompressing %d test images...%n", testJobs.size());
             startTime = System.currentTimeMillis();
 
-            processRGBCompression(testImages, rgbCodebooks, compressor, metrics);
+            List<BatchPipeline.Result> results = pipeline.compress(testJobs, variants, Paths.get(OUTPUT_PATH));
 
-            processYUVCompression(testImages, rgbCodebooks, compressor, colorConverter, metrics);
+            reportTreeTradeoff(results);
+            reportCategoryCodebooks(results, routes, registry);
 
             System.out.printf("\nTotal processing time: %ds%n", 
                 (System.currentTimeMillis() - startTime) / 1000);
 
+            recorder.printSummary();
+            recorder.writeJson(Paths.get(OUTPUT_PATH, "report.json"));
+            recorder.writeCsv(Paths.get(OUTPUT_PATH, "images.csv"));
+            System.out.printf("Run report written to %s/report.json and %s/images.csv%n", OUTPUT_PATH, OUTPUT_PATH);
+
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    private static void encodeSequence(ImageLoader imageLoader, SequenceEncoder encoder, VQFileWriter writer,
+                                       String frameDir, Path outputDir) throws IOException {
+        Files.createDirectories(outputDir);
+        List<File> frames = imageLoader.listSequenceFiles(frameDir);
+        long startTime = System.currentTimeMillis();
+        long bytes = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            BufferedImage frame = imageLoader.loadImage(frames.get(i));
+            Path path = outputDir.resolve(String.format("frame_%05d.vq", i));
+            bytes += writer.write(encoder.encodeRGB(frame), path);
+            System.out.printf("\rProgress: %d/%d frames encoded", i + 1, frames.size());
+        }
+        System.out.printf("%nEncoded %d frames into %s (%d bytes) in %ds, %.1f%% of blocks reused%n",
+            frames.size(), outputDir, bytes, (System.currentTimeMillis() - startTime) / 1000,
+            100.0 * encoder.getReusedBlocks() / Math.max(1, encoder.getTotalBlocks()));
+    }
+
     private static void createDirectories() {
         createDirectory(TRAINING_PATH + "/nature");
         createDirectory(TRAINING_PATH + "/faces");
@@ -73,6 +277,8 @@ public class App {
         createDirectory(TEST_PATH + "/animals");
         createDirectory(OUTPUT_PATH + "/rgb");
         createDirectory(OUTPUT_PATH + "/yuv");
+        createDirectory(OUTPUT_PATH + "/tree");
+        createDirectory(OUTPUT_PATH + "/category");
     }
 
     private static void createDirectory(String path) {
@@ -82,59 +288,64 @@ public class App {
         }
     }
 
-    private static int getTotalImages(Map<String, List<BufferedImage>> images) {
-        return images.values().stream()
-                    .mapToInt(List::size)
-                    .sum();
-    }
+    private static void reportTreeTradeoff(List<BatchPipeline.Result> results) {
+        System.out.println("\nFull Search vs Tree-Structured Codebook:");
+        System.out.println("----------------------------------------");
 
-    private static void processRGBCompression(Map<String, List<BufferedImage>> testImages,
-                                            Map<String, double[][]> codebooks,
-                                            ImageCompressor compressor,
-                                            CompressionMetrics metrics) throws IOException {
-        System.out.println("\nRGB Compression Results:");
-        System.out.println("------------------------");
-        
-        for (Map.Entry<String, List<BufferedImage>> entry : testImages.entrySet()) {
-            String category = entry.getKey();
-            for (int i = 0; i < entry.getValue().size(); i++) {
-                BufferedImage original = entry.getValue().get(i);
-                BufferedImage compressed = compressor.compressRGB(original, codebooks);
-                
-                String outputPath = OUTPUT_PATH + "/rgb/" + category + "_" + i + "_compressed.png";
-                ImageIO.write(compressed, "png", new File(outputPath));
-                
-                System.out.printf("\nMetrics for %s image %d:\n", category, i + 1);
-                metrics.calculateAndDisplayMetrics(original, compressed);
+        Map<String, double[]> totals = new LinkedHashMap<>();
+        for (BatchPipeline.Result result : results) {
+            // flat PSNR, flat ns, tree PSNR, tree ns, image count
+            double[] total = totals.computeIfAbsent(result.getJob().getCategory(), category -> new double[5]);
+            if (result.getVariant().equals("rgb")) {
+                total[0] += result.getPsnr();
+                total[1] += result.getEncodeNanos();
+                total[4]++;
+            } else if (result.getVariant().equals("tree")) {
+                total[2] += result.getPsnr();
+                total[3] += result.getEncodeNanos();
             }
         }
+
+        for (Map.Entry<String, double[]> entry : totals.entrySet()) {
+            double[] total = entry.getValue();
+            double count = total[4];
+            System.out.printf("%s: full search %.2f dB in %.0fms/image, tree %.2f dB in %.0fms/image (%.1fx faster, %+.2f dB)%n",
+                entry.getKey(),
+                total[0] / count, total[1] / 1e6 / count,
+                total[2] / count, total[3] / 1e6 / count,
+                total[1] / total[3], (total[2] - total[0]) / count);
+        }
     }
 
-    private static void processYUVCompression(Map<String, List<BufferedImage>> testImages,
-                                            Map<String, double[][]> codebooks,
-                                            ImageCompressor compressor,
-                                            ColorSpaceConverter colorConverter,
-                                            CompressionMetrics metrics) throws IOException {
-        System.out.println("\nYUV Compression Results:");
-        System.out.println("------------------------");
-        
-        for (Map.Entry<String, List<BufferedImage>> entry : testImages.entrySet()) {
-            String category = entry.getKey();
-            for (int i = 0; i < entry.getValue().size(); i++) {
-                BufferedImage original = entry.getValue().get(i);
-                
-                BufferedImage yuvImage = colorConverter.rgbToYuv(original);
-                BufferedImage subsampledYuv = colorConverter.subsampleUV(yuvImage);
-                BufferedImage compressedYuv = compressor.compressYUV(subsampledYuv, codebooks);
-                BufferedImage upsampled = colorConverter.upsampleUV(compressedYuv);
-                BufferedImage finalImage = colorConverter.yuvToRgb(upsampled);
-                
-                String outputPath = OUTPUT_PATH + "/yuv/" + category + "_" + i + "_compressed.png";
-                ImageIO.write(finalImage, "png", new File(outputPath));
-                
-                System.out.printf("\nMetrics for %s image %d:\n", category, i + 1);
-                metrics.calculateAndDisplayMetrics(original, finalImage);
+    private static void reportCategoryCodebooks(List<BatchPipeline.Result> results, Map<String, String> routes,
+                                                CodebookRegistry registry) {
+        System.out.println("\nGlobal vs Routed Category Codebooks:");
+        System.out.println("------------------------------------");
+
+        Map<String, double[]> totals = new LinkedHashMap<>();
+        for (BatchPipeline.Result result : results) {
+            // global PSNR, routed PSNR, routed to own category, image count
+            double[] total = totals.computeIfAbsent(result.getJob().getCategory(), category -> new double[4]);
+            if (result.getVariant().equals("rgb")) {
+                total[0] += result.getPsnr();
+                total[3]++;
+            } else if (result.getVariant().equals("category")) {
+                total[1] += result.getPsnr();
+                String routed = routes.get(result.getVariant() + "/" + result.getJob().getName());
+                if (result.getJob().getCategory().equals(routed)) {
+                    total[2]++;
+                }
             }
         }
+
+        for (Map.Entry<String, double[]> entry : totals.entrySet()) {
+            double[] total = entry.getValue();
+            double count = total[3];
+            System.out.printf("%s: global %.2f dB, routed %.2f dB (%+.2f dB), %d/%d images routed to %s%n",
+                entry.getKey(), total[0] / count, total[1] / count, (total[1] - total[0]) / count,
+                (int) total[2], (int) count, entry.getKey());
+        }
+        System.out.printf("Category codebooks loaded %d times, %d evicted, %d of %d cached%n",
+            registry.getLoads(), registry.getEvictions(), registry.getCachedCount(), registry.getCategories().size());
     }
-}
\ No newline at end of file
+}
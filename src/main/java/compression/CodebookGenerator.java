@@ -4,154 +4,237 @@ import java.awt.image.BufferedImage;
 import java.util.*;
 
 public class CodebookGenerator {
-    private static final int CODEBOOK_SIZE = 256;
-    private static final int VECTOR_SIZE = 4;
-    private static final int BATCH_SIZE = 1000;
     private static final int MAX_ITERATIONS = 20;
+    private static final double CONVERGENCE_THRESHOLD = 0.01;
+    private static final double SPLIT_PERTURBATION = 0.5;
+
+    private final KMeansClusterer clusterer;
+    private final VQConfig config;
+    private final int codebookSize;
+    private final int vectorSize;
+
+    public CodebookGenerator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CodebookGenerator(int parallelism) {
+        this(parallelism, VQConfig.load());
+    }
+
+    public CodebookGenerator(int parallelism, VQConfig config) {
+        this.clusterer = new KMeansClusterer(parallelism, MAX_ITERATIONS, CONVERGENCE_THRESHOLD);
+        this.config = config;
+        this.codebookSize = config.getCodebookSize();
+        this.vectorSize = config.getVectorSize();
+    }
+
+    public TrainingReservoir createReservoir() {
+        return createReservoir(3);
+    }
+
+    private TrainingReservoir createReservoir(int channels) {
+        return new TrainingReservoir(config.getReservoirSize(), channels, config.getBlockWidth(),
+            config.getBlockHeight(), new Random(), config.getReservoirSpillDirectory());
+    }
+
+    // Planar YUV trains luma on its own and samples U and V from the same
+    // chroma positions, so the two chroma codebooks see matching blocks.
+    public TrainingReservoir createLumaReservoir() {
+        return createReservoir(1);
+    }
+
+    public TrainingReservoir createChromaReservoir() {
+        return createReservoir(2);
+    }
 
     public Map<String, double[][]> generateRGBCodebooks(Map<String, List<BufferedImage>> trainingImages) {
+        return generateRGBCodebooks(fillReservoir(trainingImages));
+    }
+
+    public Map<String, double[][]> generateRGBCodebooks(TrainingReservoir reservoir) {
+        checkVectorSize(reservoir);
         Map<String, double[][]> codebooks = new HashMap<>();
         
         System.out.println("Generating Red codebook...");
-        codebooks.put("red", generateChannelCodebook(trainingImages, 16));
+        codebooks.put("red", kmeansClustering(reservoir.getVectors(0), reservoir.size()));
         
         System.out.println("Generating Green codebook...");
-        codebooks.put("green", generateChannelCodebook(trainingImages, 8));
+        codebooks.put("green", kmeansClustering(reservoir.getVectors(1), reservoir.size()));
         
         System.out.println("Generating Blue codebook...");
-        codebooks.put("blue", generateChannelCodebook(trainingImages, 0));
+        codebooks.put("blue", kmeansClustering(reservoir.getVectors(2), reservoir.size()));
         
         return codebooks;
     }
 
-    private double[][] generateChannelCodebook(Map<String, List<BufferedImage>> trainingImages, int shift) {
-        List<double[]> vectors = new ArrayList<>();
-        
-        for (List<BufferedImage> images : trainingImages.values()) {
-            for (BufferedImage image : images) {
-                extractVectorsForChannel(image, vectors, shift);
-                if (vectors.size() >= BATCH_SIZE) {
-                    vectors = sampleVectors(vectors, BATCH_SIZE);
-                }
-            }
-        }
+    public Map<String, double[][]> generateYUVCodebooks(TrainingReservoir luma, TrainingReservoir chroma) {
+        checkVectorSize(luma);
+        checkVectorSize(chroma);
+        Map<String, double[][]> codebooks = new HashMap<>();
 
-        return kmeansClustering(vectors);
-    }
+        System.out.println("Generating Y codebook...");
+        codebooks.put("y", kmeansClustering(luma.getVectors(0), luma.size()));
 
-    private void extractVectorsForChannel(BufferedImage image, List<double[]> vectors, int shift) {
-        int width = image.getWidth();
-        int height = image.getHeight();
+        System.out.println("Generating U codebook...");
+        codebooks.put("u", kmeansClustering(chroma.getVectors(0), chroma.size()));
 
-        for (int y = 0; y < height - 1; y += 2) {
-            for (int x = 0; x < width - 1; x += 2) {
-                double[] vector = new double[VECTOR_SIZE];
-                int idx = 0;
+        System.out.println("Generating V codebook...");
+        codebooks.put("v", kmeansClustering(chroma.getVectors(1), chroma.size()));
 
-                for (int dy = 0; dy < 2; dy++) {
-                    for (int dx = 0; dx < 2; dx++) {
-                        int rgb = image.getRGB(x + dx, y + dy);
-                        vector[idx++] = (rgb >> shift) & 0xFF;
-                    }
-                }
-                vectors.add(vector);
-            }
-        }
+        return codebooks;
+    }
+
+    public Map<String, TreeCodebook> generateRGBTreeCodebooks(Map<String, List<BufferedImage>> trainingImages) {
+        return generateRGBTreeCodebooks(fillReservoir(trainingImages));
     }
 
-    private List<double[]> sampleVectors(List<double[]> vectors, int sampleSize) {
-        if (vectors.size() <= sampleSize) return vectors;
+    public Map<String, TreeCodebook> generateRGBTreeCodebooks(TrainingReservoir reservoir) {
+        checkVectorSize(reservoir);
+        Map<String, TreeCodebook> codebooks = new HashMap<>();
         
-        List<double[]> sampled = new ArrayList<>(sampleSize);
-        Random random = new Random();
+        System.out.println("Generating Red tree codebook...");
+        codebooks.put("red", generateChannelTree(reservoir.getVectors(0), reservoir.size()));
         
-        for (int i = 0; i < sampleSize; i++) {
-            sampled.add(vectors.get(random.nextInt(vectors.size())));
-        }
+        System.out.println("Generating Green tree codebook...");
+        codebooks.put("green", generateChannelTree(reservoir.getVectors(1), reservoir.size()));
+        
+        System.out.println("Generating Blue tree codebook...");
+        codebooks.put("blue", generateChannelTree(reservoir.getVectors(2), reservoir.size()));
         
-        return sampled;
+        return codebooks;
     }
 
-    private double[][] kmeansClustering(List<double[]> vectors) {
-        double[][] codebook = initializeCodebook(vectors);
-        
-        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
-            Map<Integer, List<double[]>> clusters = new HashMap<>();
-            
-            for (double[] vector : vectors) {
-                int nearest = findNearestCodeword(vector, codebook);
-                clusters.computeIfAbsent(nearest, k -> new ArrayList<>()).add(vector);
-            }
-            
-            boolean changed = updateCodebook(codebook, clusters);
-            if (!changed) break;
+    private void checkVectorSize(TrainingReservoir reservoir) {
+        if (reservoir.getVectorSize() != vectorSize) {
+            throw new IllegalArgumentException("Reservoir holds " + reservoir.getVectorSize()
+                + "-dimensional blocks, configured blocks have " + vectorSize);
         }
-        
-        return codebook;
     }
 
-    private double[][] initializeCodebook(List<double[]> vectors) {
-        double[][] codebook = new double[CODEBOOK_SIZE][VECTOR_SIZE];
-        Random random = new Random();
-        
-        for (int i = 0; i < CODEBOOK_SIZE; i++) {
-            codebook[i] = vectors.get(random.nextInt(vectors.size())).clone();
+    private TrainingReservoir fillReservoir(Map<String, List<BufferedImage>> trainingImages) {
+        TrainingReservoir reservoir = createReservoir();
+        for (List<BufferedImage> images : trainingImages.values()) {
+            for (BufferedImage image : images) {
+                reservoir.addImage(image);
+            }
         }
-        
-        return codebook;
+        return reservoir;
     }
 
-    private int findNearestCodeword(double[] vector, double[][] codebook) {
-        int nearest = 0;
-        double minDist = Double.MAX_VALUE;
+    public VQConfig getConfig() {
+        return config;
+    }
 
-        for (int i = 0; i < codebook.length; i++) {
-            double dist = calculateDistance(vector, codebook[i]);
-            if (dist < minDist) {
-                minDist = dist;
-                nearest = i;
-            }
+    public String getParameterSignature() {
+        return "codebookSize=" + codebookSize
+            + ";block=" + config.getBlockWidth() + "x" + config.getBlockHeight()
+            + ";reservoirSize=" + config.getReservoirSize()
+            + ";maxIterations=" + MAX_ITERATIONS
+            + ";convergenceThreshold=" + CONVERGENCE_THRESHOLD
+            + ";init=kmeans++";
+    }
+
+    public String getTreeParameterSignature() {
+        return getParameterSignature() + ";tree;splitPerturbation=" + SPLIT_PERTURBATION;
+    }
+
+    public String getYUVParameterSignature() {
+        return getParameterSignature() + ";yuv420";
+    }
+
+    public String getCategoryParameterSignature() {
+        return getParameterSignature() + ";category";
+    }
+
+    private TreeCodebook generateChannelTree(PackedVectors vectors, int count) {
+        int[] members = new int[count];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = i;
         }
 
-        return nearest;
+        double[][] nodes = new double[2 * codebookSize][];
+        nodes[0] = new double[vectorSize];
+        nodes[1] = calculateCentroid(vectors, members, 0, members.length, new double[vectorSize]);
+        splitNode(nodes, 1, vectors, members, 0, members.length);
+        return new TreeCodebook(nodes);
     }
 
-    private double calculateDistance(double[] v1, double[] v2) {
-        double sum = 0;
-        for (int i = 0; i < v1.length; i++) {
-            double diff = v1[i] - v2[i];
-            sum += diff * diff;
+    // LBG-style binary split: the children start as the parent centroid
+    // nudged in opposite directions, then 2-means refines them on the
+    // parent's vectors, which are partitioned in place for the recursion.
+    private void splitNode(double[][] nodes, int node, PackedVectors vectors, int[] members, int from, int to) {
+        if (node >= codebookSize) {
+            return;
+        }
+
+        double[] left = nodes[node].clone();
+        double[] right = nodes[node].clone();
+        for (int j = 0; j < vectorSize; j++) {
+            left[j] -= SPLIT_PERTURBATION;
+            right[j] += SPLIT_PERTURBATION;
         }
-        return Math.sqrt(sum);
+
+        int middle = from;
+        for (int iteration = 0; iteration < MAX_ITERATIONS && to - from > 1; iteration++) {
+            middle = partition(vectors, members, from, to, left, right);
+            double[] newLeft = middle > from
+                ? calculateCentroid(vectors, members, from, middle, new double[vectorSize]) : left;
+            double[] newRight = middle < to
+                ? calculateCentroid(vectors, members, middle, to, new double[vectorSize]) : right;
+
+            boolean changed = !Arrays.equals(left, newLeft) || !Arrays.equals(right, newRight);
+            left = newLeft;
+            right = newRight;
+            if (!changed) break;
+        }
+
+        nodes[2 * node] = left;
+        nodes[2 * node + 1] = right;
+        splitNode(nodes, 2 * node, vectors, members, from, middle);
+        splitNode(nodes, 2 * node + 1, vectors, members, middle, to);
     }
 
-    private boolean updateCodebook(double[][] codebook, Map<Integer, List<double[]>> clusters) {
-        boolean changed = false;
-        
-        for (Map.Entry<Integer, List<double[]>> entry : clusters.entrySet()) {
-            double[] centroid = calculateCentroid(entry.getValue());
-            if (!Arrays.equals(codebook[entry.getKey()], centroid)) {
-                codebook[entry.getKey()] = centroid;
-                changed = true;
+    private int partition(PackedVectors vectors, int[] members, int from, int to, double[] left, double[] right) {
+        int middle = from;
+        for (int i = from; i < to; i++) {
+            double leftDist = 0;
+            double rightDist = 0;
+            for (int j = 0; j < vectorSize; j++) {
+                int value = vectors.get(members[i], j);
+                double leftDiff = value - left[j];
+                double rightDiff = value - right[j];
+                leftDist += leftDiff * leftDiff;
+                rightDist += rightDiff * rightDiff;
+            }
+            if (leftDist <= rightDist) {
+                int tmp = members[middle];
+                members[middle++] = members[i];
+                members[i] = tmp;
             }
         }
-        
-        return changed;
+        return middle;
     }
 
-    private double[] calculateCentroid(List<double[]> vectors) {
-        double[] centroid = new double[VECTOR_SIZE];
-        
-        for (double[] vector : vectors) {
-            for (int i = 0; i < VECTOR_SIZE; i++) {
-                centroid[i] += vector[i];
+    private double[] calculateCentroid(PackedVectors vectors, int[] members, int from, int to, double[] centroid) {
+        Arrays.fill(centroid, 0);
+        for (int i = from; i < to; i++) {
+            for (int j = 0; j < vectorSize; j++) {
+                centroid[j] += vectors.get(members[i], j);
             }
         }
-        
-        for (int i = 0; i < VECTOR_SIZE; i++) {
-            centroid[i] /= vectors.size();
+        for (int j = 0; j < vectorSize; j++) {
+            centroid[j] /= to - from;
         }
-        
         return centroid;
     }
-}
\ No newline at end of file
+
+    private double[][] kmeansClustering(PackedVectors vectors, int count) {
+        double[][] initial = clusterer.initialize(vectors, count, codebookSize, new Random());
+        KMeansClusterer.Result result = clusterer.cluster(vectors, count, initial);
+        System.out.printf("Converged after %d iterations, distortion %.2f, %d empty clusters reseeded, "
+                + "%.1f%% of brute-force distance evaluations%n",
+            result.getIterations(), result.getDistortion(), result.getReseededClusters(),
+            100.0 * result.getDistanceEvaluations() / result.getBruteForceEvaluations());
+        return result.getCodebook();
+    }
+}
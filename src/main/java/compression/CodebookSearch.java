@@ -0,0 +1,9 @@
+package main.java.compression;
+
+public interface CodebookSearch {
+    int findNearest(float[] vector, int offset);
+
+    int size();
+
+    int dimension();
+}
@@ -2,27 +2,39 @@ package main.java.compression;
 
 import java.awt.image.BufferedImage;
 
+import main.java.compression.utils.PixelAccess;
+
+// Integer YUV conversion: coefficients are fixed-point with 16 fractional
+// bits, and U/V are stored with a +128 offset clamped to a byte so that a
+// packed pixel never spills into the neighbouring channel.
 public class ColorSpaceConverter {
-    
+    private static final int FRACTION_BITS = 16;
+    private static final int HALF = 1 << (FRACTION_BITS - 1);
+
+    private static final int Y_R = 19595;   // 0.299
+    private static final int Y_G = 38470;   // 0.587
+    private static final int Y_B = 7471;    // 0.114
+    private static final int U_R = -9634;   // -0.147
+    private static final int U_G = -18940;  // -0.289
+    private static final int U_B = 28574;   // 0.436
+    private static final int V_R = 40305;   // 0.615
+    private static final int V_G = -33751;  // -0.515
+    private static final int V_B = -6554;   // -0.100
+
+    private static final int R_V = 74711;   // 1.140
+    private static final int G_U = -25887;  // -0.395
+    private static final int G_V = -38076;  // -0.581
+    private static final int B_U = 133169;  // 2.032
+
     public BufferedImage rgbToYuv(BufferedImage rgbImage) {
         int width = rgbImage.getWidth();
         int height = rgbImage.getHeight();
-        BufferedImage yuvImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = rgbImage.getRGB(x, y);
-                int r = (rgb >> 16) & 0xFF;
-                int g = (rgb >> 8) & 0xFF;
-                int b = rgb & 0xFF;
+        BufferedImage yuvImage = PixelAccess.createRgbImage(width, height);
+        int[] source = PixelAccess.pixels(rgbImage);
+        int[] target = PixelAccess.pixels(yuvImage);
 
-                int Y = (int)(0.299 * r + 0.587 * g + 0.114 * b);
-                int U = (int)(-0.147 * r - 0.289 * g + 0.436 * b);
-                int V = (int)(0.615 * r - 0.515 * g - 0.100 * b);
-
-                int yuv = (Y << 16) | ((U + 128) << 8) | (V + 128);
-                yuvImage.setRGB(x, y, yuv);
-            }
+        for (int i = 0; i < source.length; i++) {
+            target[i] = toYuv(source[i]);
         }
         return yuvImage;
     }
@@ -30,57 +42,164 @@ public class ColorSpaceConverter {
     public BufferedImage yuvToRgb(BufferedImage yuvImage) {
         int width = yuvImage.getWidth();
         int height = yuvImage.getHeight();
-        BufferedImage rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        BufferedImage rgbImage = PixelAccess.createRgbImage(width, height);
+        int[] source = PixelAccess.pixels(yuvImage);
+        int[] target = PixelAccess.pixels(rgbImage);
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int yuv = yuvImage.getRGB(x, y);
-                int Y = (yuv >> 16) & 0xFF;
-                int U = ((yuv >> 8) & 0xFF) - 128;
-                int V = (yuv & 0xFF) - 128;
+        for (int i = 0; i < source.length; i++) {
+            target[i] = toRgb(source[i]);
+        }
+        return rgbImage;
+    }
+
+    public BufferedImage subsampleUV(BufferedImage yuvImage) {
+        return subsample(yuvImage, false);
+    }
+
+    public BufferedImage upsampleUV(BufferedImage subsampledImage) {
+        return upsample(subsampledImage, false);
+    }
 
-                int r = Math.min(255, Math.max(0, (int)(Y + 1.140 * V)));
-                int g = Math.min(255, Math.max(0, (int)(Y - 0.395 * U - 0.581 * V)));
-                int b = Math.min(255, Math.max(0, (int)(Y + 2.032 * U)));
+    // Equivalent to subsampleUV(rgbToYuv(rgbImage)) in one pass, converting
+    // only the pixels that survive subsampling.
+    public BufferedImage rgbToSubsampledYuv(BufferedImage rgbImage) {
+        return subsample(rgbImage, true);
+    }
+
+    // Equivalent to yuvToRgb(upsampleUV(subsampledImage)) in one pass,
+    // converting each subsampled pixel once.
+    public BufferedImage subsampledYuvToRgb(BufferedImage subsampledImage) {
+        return upsample(subsampledImage, true);
+    }
+
+    // Planar 4:2:0: luma keeps every pixel, each chroma sample is the rounded
+    // average of the (up to) four pixels it covers.
+    public YuvPlanes toPlanarYuv(BufferedImage rgbImage) {
+        int width = rgbImage.getWidth();
+        int height = rgbImage.getHeight();
+        YuvPlanes planes = new YuvPlanes(width, height);
+        int[] source = PixelAccess.pixels(rgbImage);
+        byte[] yPlane = planes.getY();
+        byte[] uPlane = planes.getU();
+        byte[] vPlane = planes.getV();
+        int chromaWidth = planes.getChromaWidth();
 
-                int rgb = (r << 16) | (g << 8) | b;
-                rgbImage.setRGB(x, y, rgb);
+        for (int cy = 0; cy < planes.getChromaHeight(); cy++) {
+            for (int cx = 0; cx < chromaWidth; cx++) {
+                int uSum = 0;
+                int vSum = 0;
+                int samples = 0;
+                for (int y = cy * 2; y < Math.min(cy * 2 + 2, height); y++) {
+                    for (int x = cx * 2; x < Math.min(cx * 2 + 2, width); x++) {
+                        int yuv = toYuv(source[y * width + x]);
+                        yPlane[y * width + x] = (byte) (yuv >> 16);
+                        uSum += (yuv >> 8) & 0xFF;
+                        vSum += yuv & 0xFF;
+                        samples++;
+                    }
+                }
+                uPlane[cy * chromaWidth + cx] = (byte) ((uSum + samples / 2) / samples);
+                vPlane[cy * chromaWidth + cx] = (byte) ((vSum + samples / 2) / samples);
+            }
+        }
+        return planes;
+    }
+
+    public BufferedImage fromPlanarYuv(YuvPlanes planes) {
+        int width = planes.getWidth();
+        int height = planes.getHeight();
+        BufferedImage rgbImage = PixelAccess.createRgbImage(width, height);
+        int[] target = PixelAccess.pixels(rgbImage);
+        byte[] yPlane = planes.getY();
+        byte[] uPlane = planes.getU();
+        byte[] vPlane = planes.getV();
+        int chromaWidth = planes.getChromaWidth();
+
+        for (int y = 0; y < height; y++) {
+            int chromaRow = (y >> 1) * chromaWidth;
+            for (int x = 0; x < width; x++) {
+                int chroma = chromaRow + (x >> 1);
+                int yuv = ((yPlane[y * width + x] & 0xFF) << 16)
+                    | ((uPlane[chroma] & 0xFF) << 8)
+                    | (vPlane[chroma] & 0xFF);
+                target[y * width + x] = toRgb(yuv);
             }
         }
         return rgbImage;
     }
 
-    public BufferedImage subsampleUV(BufferedImage yuvImage) {
-        int width = yuvImage.getWidth();
-        int height = yuvImage.getHeight();
+    private BufferedImage subsample(BufferedImage image, boolean convert) {
+        int width = image.getWidth();
         int newWidth = width / 2;
-        int newHeight = height / 2;
-        
-        BufferedImage subsampledImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
+        int newHeight = image.getHeight() / 2;
+        BufferedImage subsampledImage = PixelAccess.createRgbImage(newWidth, newHeight);
+        int[] source = PixelAccess.pixels(image);
+        int[] target = PixelAccess.pixels(subsampledImage);
 
         for (int y = 0; y < newHeight; y++) {
+            int sourceRow = y * 2 * width;
+            int targetRow = y * newWidth;
             for (int x = 0; x < newWidth; x++) {
-                int yuv = yuvImage.getRGB(x * 2, y * 2);
-                subsampledImage.setRGB(x, y, yuv);
+                int pixel = source[sourceRow + x * 2];
+                target[targetRow + x] = convert ? toYuv(pixel) : pixel & 0xFFFFFF;
             }
         }
         return subsampledImage;
     }
 
-    public BufferedImage upsampleUV(BufferedImage subsampledImage) {
-        int width = subsampledImage.getWidth();
-        int height = subsampledImage.getHeight();
+    private BufferedImage upsample(BufferedImage image, boolean convert) {
+        int width = image.getWidth();
+        int height = image.getHeight();
         int newWidth = width * 2;
-        int newHeight = height * 2;
-        
-        BufferedImage upsampledImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
+        BufferedImage upsampledImage = PixelAccess.createRgbImage(newWidth, height * 2);
+        int[] source = PixelAccess.pixels(image);
+        int[] target = PixelAccess.pixels(upsampledImage);
 
-        for (int y = 0; y < newHeight; y++) {
-            for (int x = 0; x < newWidth; x++) {
-                int yuv = subsampledImage.getRGB(x/2, y/2);
-                upsampledImage.setRGB(x, y, yuv);
+        for (int y = 0; y < height; y++) {
+            int top = y * 2 * newWidth;
+            int bottom = top + newWidth;
+            for (int x = 0; x < width; x++) {
+                int pixel = source[y * width + x];
+                if (convert) {
+                    pixel = toRgb(pixel);
+                } else {
+                    pixel &= 0xFFFFFF;
+                }
+                int col = x * 2;
+                target[top + col] = pixel;
+                target[top + col + 1] = pixel;
+                target[bottom + col] = pixel;
+                target[bottom + col + 1] = pixel;
             }
         }
         return upsampledImage;
     }
-}
\ No newline at end of file
+
+    private static int toYuv(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+
+        int y = (Y_R * r + Y_G * g + Y_B * b + HALF) >> FRACTION_BITS;
+        int u = ((U_R * r + U_G * g + U_B * b + HALF) >> FRACTION_BITS) + 128;
+        int v = ((V_R * r + V_G * g + V_B * b + HALF) >> FRACTION_BITS) + 128;
+
+        return (clamp(y) << 16) | (clamp(u) << 8) | clamp(v);
+    }
+
+    private static int toRgb(int yuv) {
+        int y = (yuv >> 16) & 0xFF;
+        int u = ((yuv >> 8) & 0xFF) - 128;
+        int v = (yuv & 0xFF) - 128;
+
+        int r = y + ((R_V * v + HALF) >> FRACTION_BITS);
+        int g = y + ((G_U * u + G_V * v + HALF) >> FRACTION_BITS);
+        int b = y + ((B_U * u + HALF) >> FRACTION_BITS);
+
+        return (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
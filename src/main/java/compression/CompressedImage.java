@@ -0,0 +1,189 @@
+package main.java.compression;
+
+import java.util.Arrays;
+import java.util.Map;
+
+public class CompressedImage {
+    public static final int COLOR_SPACE_RGB = 0;
+    public static final int COLOR_SPACE_YUV = 1;
+    public static final int COLOR_SPACE_YUV420 = 2;
+    // Indices from the codebook size up stand for flat blocks, coded by
+    // their mean alone: codebookSize + mean, for a mean of 0 to 255.
+    public static final int FLAT_LEVELS = 256;
+
+    private final int width;
+    private final int height;
+    private final int colorSpace;
+    private final int blockWidth;
+    private final int blockHeight;
+    private final String[] channels;
+    private final int[] planeWidths;
+    private final int[] planeHeights;
+    private final int[][] indices;
+    private final Map<String, double[][]> codebooks;
+    private final int[][] referenceIndices;
+    private final long flatBlockCount;
+
+    public CompressedImage(int width, int height, int colorSpace, int blockWidth, int blockHeight,
+                           String[] channels, int[][] indices, Map<String, double[][]> codebooks) {
+        this(width, height, colorSpace, blockWidth, blockHeight, channels,
+            filled(channels.length, width), filled(channels.length, height), indices, codebooks);
+    }
+
+    // Planes may be smaller than the image, e.g. quarter-size chroma planes.
+    public CompressedImage(int width, int height, int colorSpace, int blockWidth, int blockHeight,
+                           String[] channels, int[] planeWidths, int[] planeHeights,
+                           int[][] indices, Map<String, double[][]> codebooks) {
+        this(width, height, colorSpace, blockWidth, blockHeight, channels, planeWidths, planeHeights, indices,
+            codebooks, null, -1);
+    }
+
+    private CompressedImage(int width, int height, int colorSpace, int blockWidth, int blockHeight,
+                            String[] channels, int[] planeWidths, int[] planeHeights,
+                            int[][] indices, Map<String, double[][]> codebooks, int[][] referenceIndices,
+                            long flatBlockCount) {
+        if (channels.length != indices.length) {
+            throw new IllegalArgumentException("Expected " + channels.length + " index streams, got " + indices.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.colorSpace = colorSpace;
+        this.blockWidth = blockWidth;
+        this.blockHeight = blockHeight;
+        this.channels = channels;
+        this.planeWidths = planeWidths;
+        this.planeHeights = planeHeights;
+        this.indices = indices;
+        this.codebooks = codebooks;
+        this.referenceIndices = referenceIndices;
+        this.flatBlockCount = flatBlockCount;
+    }
+
+    // The same frame, marked as following `previous` in a sequence, so the
+    // writer can code blocks that kept their indices as references to it.
+    // Only the previous frame's indices are kept, not its own reference.
+    public CompressedImage withReference(CompressedImage previous) {
+        if (previous.width != width || previous.height != height || previous.blockWidth != blockWidth
+                || previous.blockHeight != blockHeight || !Arrays.equals(previous.channels, channels)
+                || !Arrays.equals(previous.planeWidths, planeWidths)
+                || !Arrays.equals(previous.planeHeights, planeHeights)) {
+            throw new IllegalArgumentException("Reference frame has a different size or layout");
+        }
+        for (int c = 0; c < channels.length; c++) {
+            if (!Arrays.deepEquals(previous.getCodebook(c), getCodebook(c))) {
+                throw new IllegalArgumentException("Reference frame uses another codebook for channel " + channels[c]);
+            }
+        }
+        return new CompressedImage(width, height, colorSpace, blockWidth, blockHeight, channels, planeWidths,
+            planeHeights, indices, codebooks, previous.indices, flatBlockCount);
+    }
+
+    // The encoder's count of blocks that skipped the search, including
+    // those coded by a codeword rather than a flat index.
+    CompressedImage withFlatBlockCount(long count) {
+        return new CompressedImage(width, height, colorSpace, blockWidth, blockHeight, channels, planeWidths,
+            planeHeights, indices, codebooks, referenceIndices, count);
+    }
+
+    public boolean hasReference() {
+        return referenceIndices != null;
+    }
+
+    public int[] getReferenceIndices(int channel) {
+        return referenceIndices[channel];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getColorSpace() {
+        return colorSpace;
+    }
+
+    public int getBlockWidth() {
+        return blockWidth;
+    }
+
+    public int getBlockHeight() {
+        return blockHeight;
+    }
+
+    public int getBlocksPerRow() {
+        return width / blockWidth;
+    }
+
+    public int getBlockRows() {
+        return height / blockHeight;
+    }
+
+    public int getPlaneWidth(int channel) {
+        return planeWidths[channel];
+    }
+
+    public int getPlaneHeight(int channel) {
+        return planeHeights[channel];
+    }
+
+    public int getBlocksPerRow(int channel) {
+        return planeWidths[channel] / blockWidth;
+    }
+
+    public int getBlockRows(int channel) {
+        return planeHeights[channel] / blockHeight;
+    }
+
+    public String[] getChannels() {
+        return channels;
+    }
+
+    public int[] getIndices(int channel) {
+        return indices[channel];
+    }
+
+    public double[][] getCodebook(int channel) {
+        return codebooks.get(channels[channel]);
+    }
+
+    public Map<String, double[][]> getCodebooks() {
+        return codebooks;
+    }
+
+    // Blocks the encoder found flat, or for an image read from a file, the
+    // blocks held as flat indices.
+    public long getFlatBlockCount() {
+        return flatBlockCount >= 0 ? flatBlockCount : flatIndexCount();
+    }
+
+    // Whether any index lies above its codebook, i.e. is a flat block index.
+    public boolean hasFlatIndices() {
+        return flatIndexCount() > 0;
+    }
+
+    private long flatIndexCount() {
+        long count = 0;
+        for (int c = 0; c < channels.length; c++) {
+            int codebookSize = getCodebook(c).length;
+            for (int index : indices[c]) {
+                if (index >= codebookSize) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public static int flatIndex(int codebookSize, int mean) {
+        return codebookSize + mean;
+    }
+
+    private static int[] filled(int length, int value) {
+        int[] values = new int[length];
+        Arrays.fill(values, value);
+        return values;
+    }
+}
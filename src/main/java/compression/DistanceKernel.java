@@ -0,0 +1,12 @@
+package main.java.compression;
+
+// Squared distances from one query vector to every codeword of a fixed
+// codebook, in the same arithmetic as FlatCodebook: differences squared and
+// summed in component order, without fused multiply-adds.
+interface DistanceKernel {
+    // Lowest index among the nearest codewords.
+    int findNearest(float[] vector, int offset);
+
+    // Writes the distance to codeword k into out[k].
+    void distances(float[] vector, int offset, float[] out);
+}
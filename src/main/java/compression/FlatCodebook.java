@@ -0,0 +1,137 @@
+package main.java.compression;
+
+public class FlatCodebook implements CodebookSearch {
+    private final float[] codewords;
+    private final int size;
+    private final int dimension;
+    private final DistanceKernel kernel;
+
+    public FlatCodebook(double[][] codebook) {
+        this(codebook, true);
+    }
+
+    // vectorized uses the Vector API kernel when the JVM provides it; both
+    // paths select the same codewords.
+    public FlatCodebook(double[][] codebook, boolean vectorized) {
+        this.size = codebook.length;
+        this.dimension = codebook[0].length;
+        this.codewords = new float[size * dimension];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < dimension; j++) {
+                codewords[i * dimension + j] = (float) codebook[i][j];
+            }
+        }
+        this.kernel = vectorized ? VectorSupport.create(codewords, size, dimension) : null;
+    }
+
+    public boolean isVectorized() {
+        return kernel != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int dimension() {
+        return dimension;
+    }
+
+    public float get(int codeword, int component) {
+        return codewords[codeword * dimension + component];
+    }
+
+    // Matches the arithmetic of findNearest exactly so that other searches
+    // over the same codebook select identical codewords.
+    float distance(float[] vector, int offset, int codeword) {
+        int base = codeword * dimension;
+        float dist = 0;
+        for (int j = 0; j < dimension; j++) {
+            float diff = vector[offset + j] - codewords[base + j];
+            dist += diff * diff;
+        }
+        return dist;
+    }
+
+    // Squared distances keep the same ordering as Euclidean ones. A candidate
+    // is abandoned as soon as the partial sum, checked every four components,
+    // reaches the best distance so far (and after every component of the
+    // remainder); the sum itself is accumulated in
+    // component order so it matches distance() bit for bit. Ties resolve to
+    // the lowest index. 2x2 blocks take an unrolled path so the JIT can keep
+    // the query vector in registers.
+    @Override
+    public int findNearest(float[] vector, int offset) {
+        if (kernel != null) {
+            return kernel.findNearest(vector, offset);
+        }
+        if (dimension == 4) {
+            return findNearest4(vector, offset);
+        }
+
+        float[] codewords = this.codewords;
+        int nearest = 0;
+        float minDist = Float.MAX_VALUE;
+        int unrolled = dimension & ~3;
+
+        candidates:
+        for (int i = 0, base = 0; i < size; i++, base += dimension) {
+            float dist = 0;
+            int j = 0;
+            for (; j < unrolled; j += 4) {
+                float d0 = vector[offset + j] - codewords[base + j];
+                float d1 = vector[offset + j + 1] - codewords[base + j + 1];
+                float d2 = vector[offset + j + 2] - codewords[base + j + 2];
+                float d3 = vector[offset + j + 3] - codewords[base + j + 3];
+                dist += d0 * d0;
+                dist += d1 * d1;
+                dist += d2 * d2;
+                dist += d3 * d3;
+                if (dist >= minDist) {
+                    continue candidates;
+                }
+            }
+            for (; j < dimension; j++) {
+                float diff = vector[offset + j] - codewords[base + j];
+                dist += diff * diff;
+                if (dist >= minDist) {
+                    continue candidates;
+                }
+            }
+            minDist = dist;
+            nearest = i;
+        }
+
+        return nearest;
+    }
+
+    private int findNearest4(float[] vector, int offset) {
+        float[] codewords = this.codewords;
+        float v0 = vector[offset];
+        float v1 = vector[offset + 1];
+        float v2 = vector[offset + 2];
+        float v3 = vector[offset + 3];
+        int nearest = 0;
+        float minDist = Float.MAX_VALUE;
+
+        for (int i = 0, base = 0; i < size; i++, base += 4) {
+            float d0 = v0 - codewords[base];
+            float d1 = v1 - codewords[base + 1];
+            float dist = d0 * d0 + d1 * d1;
+            if (dist >= minDist) {
+                continue;
+            }
+            float d2 = v2 - codewords[base + 2];
+            float d3 = v3 - codewords[base + 3];
+            dist += d2 * d2;
+            dist += d3 * d3;
+            if (dist < minDist) {
+                minDist = dist;
+                nearest = i;
+            }
+        }
+
+        return nearest;
+    }
+}
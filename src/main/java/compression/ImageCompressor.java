@@ -1,89 +1,476 @@
 package main.java.compression;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+import main.java.compression.utils.ParallelRange;
 
 public class ImageCompressor {
-    private static final int VECTOR_SIZE = 4;
+    private static final int STRIPE_BLOCK_ROWS = 16;
+    private static final String[] RGB_CHANNELS = {"red", "green", "blue"};
+
+    private final ColorSpaceConverter converter = new ColorSpaceConverter();
+
+    private final ForkJoinPool pool;
+    private final boolean indexedSearch;
+    private final int blockWidth;
+    private final int blockHeight;
+    private final int vectorSize;
+    private final int flatThreshold;
+    private final boolean flatExact;
+    private final int flatStep;
+    private final Map<double[][], CodebookSearch> searchCache = new WeakHashMap<>();
+    private final Map<CodebookSearch, int[]> flatCodewordCache = new WeakHashMap<>();
+
+    public ImageCompressor() {
+        this(1);
+    }
+
+    public ImageCompressor(int parallelism) {
+        this(parallelism, false);
+    }
+
+    public ImageCompressor(int parallelism, boolean indexedSearch) {
+        this(parallelism, indexedSearch, VQConfig.load());
+    }
+
+    // Encodes blocks of the configured size; decoding follows the block size
+    // stored with each image.
+    public ImageCompressor(int parallelism, boolean indexedSearch, VQConfig config) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.indexedSearch = indexedSearch;
+        this.blockWidth = config.getBlockWidth();
+        this.blockHeight = config.getBlockHeight();
+        this.vectorSize = config.getVectorSize();
+        this.flatThreshold = config.getFlatThreshold();
+        this.flatExact = config.isFlatExact();
+        this.flatStep = Math.max(1, (int) Math.sqrt(flatThreshold));
+    }
+
+    public int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    public int getBlockWidth() {
+        return blockWidth;
+    }
+
+    public int getBlockHeight() {
+        return blockHeight;
+    }
+
+    // Whether encoded images may hold flat block indices, which need room
+    // above the codebook in fixed-size files.
+    public boolean usesFlatIndices() {
+        return flatThreshold > 0 && flatExact;
+    }
 
     public BufferedImage compressRGB(BufferedImage original, Map<String, double[][]> codebooks) {
+        return decode(encodeRGB(original, codebooks));
+    }
+
+    public BufferedImage compressYUV(BufferedImage yuvImage, Map<String, double[][]> codebooks) {
+        return decode(encodeYUV(yuvImage, codebooks));
+    }
+
+    public CompressedImage encodeRGB(BufferedImage original, Map<String, double[][]> codebooks) {
+        return encode(original, searchesFor(codebooks, RGB_CHANNELS), codebooks, CompressedImage.COLOR_SPACE_RGB,
+            null);
+    }
+
+    public CompressedImage encodeYUV(BufferedImage yuvImage, Map<String, double[][]> codebooks) {
+        return encode(yuvImage, searchesFor(codebooks, RGB_CHANNELS), codebooks, CompressedImage.COLOR_SPACE_YUV,
+            null);
+    }
+
+    // Conditional replenishment for SequenceEncoder. reference holds, for
+    // every block, the pixels its indices in `previous` were chosen for. A
+    // block that differs from them by at most reuseThreshold (mean squared
+    // difference over all channels) keeps those indices without a search;
+    // any other block is coded afresh and its pixels become the reference.
+    CompressedImage encodeRGBFrame(BufferedImage frame, Map<String, double[][]> codebooks, CompressedImage previous,
+                                   int[] reference, int reuseThreshold, LongAdder reusedBlocks) {
+        return encode(frame, searchesFor(codebooks, RGB_CHANNELS), codebooks, CompressedImage.COLOR_SPACE_RGB,
+            new Replenishment(previous, reference, reuseThreshold, reusedBlocks));
+    }
+
+    // Planar 4:2:0: each plane is quantized on its own with its own codebook,
+    // so the chroma planes cost a quarter of the luma indices.
+    public CompressedImage encodeYUV(YuvPlanes planes, Map<String, double[][]> codebooks) {
+        String[] channels = YuvPlanes.CHANNELS;
+        CodebookSearch[] searches = searchesFor(codebooks, channels);
+        int[][] flatCodewords = flatCodewordsFor(searches);
+        int[] planeWidths = new int[channels.length];
+        int[] planeHeights = new int[channels.length];
+        int[][] indices = new int[channels.length][];
+        LongAdder flatBlocks = new LongAdder();
+
+        for (int c = 0; c < channels.length; c++) {
+            planeWidths[c] = planes.getPlaneWidth(c);
+            planeHeights[c] = planes.getPlaneHeight(c);
+            indices[c] = encodePlane(planes.getPlane(c), planeWidths[c], planeHeights[c], searches[c],
+                flatCodewords[c], flatBlocks);
+        }
+
+        return new CompressedImage(planes.getWidth(), planes.getHeight(), CompressedImage.COLOR_SPACE_YUV420,
+                blockWidth, blockHeight, channels, planeWidths, planeHeights, indices, codebooks)
+            .withFlatBlockCount(flatBlocks.sum());
+    }
+
+    public CompressedImage encodeRGBTree(BufferedImage original, Map<String, TreeCodebook> treeCodebooks) {
+        Map<String, double[][]> codebooks = new HashMap<>();
+        CodebookSearch[] searches = new CodebookSearch[RGB_CHANNELS.length];
+        for (int c = 0; c < RGB_CHANNELS.length; c++) {
+            TreeCodebook tree = treeCodebooks.get(RGB_CHANNELS[c]);
+            if (tree == null || tree.dimension() != vectorSize) {
+                throw new IllegalArgumentException("Missing or mismatched tree codebook for channel " + RGB_CHANNELS[c]);
+            }
+            codebooks.put(RGB_CHANNELS[c], tree.getLeafCodebook());
+            searches[c] = tree;
+        }
+        return encode(original, searches, codebooks, CompressedImage.COLOR_SPACE_RGB, null);
+    }
+
+    // Search structures are built once per codebook instance and reused for
+    // every image encoded with it; the weak keys let retired codebooks go.
+    // The projection index only beats a scalar full search; the SIMD full
+    // search is about twice as fast as the index on photos.
+    private CodebookSearch[] searchesFor(Map<String, double[][]> codebooks, String[] channels) {
+        CodebookSearch[] searches = new CodebookSearch[channels.length];
+        boolean projection = indexedSearch && !VectorSupport.isAvailable();
+        synchronized (searchCache) {
+            for (int c = 0; c < channels.length; c++) {
+                double[][] codebook = codebooks.get(channels[c]);
+                if (codebook == null) {
+                    throw new IllegalArgumentException("Missing codebook for channel " + channels[c]);
+                }
+                if (codebook[0].length != vectorSize) {
+                    throw new IllegalArgumentException("Codebook for channel " + channels[c] + " has "
+                        + codebook[0].length + "-dimensional codewords, blocks are " + blockWidth + "x" + blockHeight);
+                }
+                searches[c] = searchCache.computeIfAbsent(codebook,
+                    key -> projection ? new ProjectionIndex(key) : new FlatCodebook(key));
+            }
+        }
+        return searches;
+    }
+
+    // For each search, the codeword a flat block of each mean takes, i.e.
+    // the nearest codeword to the constant block; null entries when flat
+    // blocks are off or coded by their exact mean. Cached like the searches.
+    private int[][] flatCodewordsFor(CodebookSearch[] searches) {
+        int[][] flatCodewords = new int[searches.length][];
+        if (flatThreshold == 0 || flatExact) {
+            return flatCodewords;
+        }
+        synchronized (flatCodewordCache) {
+            for (int c = 0; c < searches.length; c++) {
+                flatCodewords[c] = flatCodewordCache.computeIfAbsent(searches[c], search -> {
+                    int[] codewords = new int[CompressedImage.FLAT_LEVELS];
+                    float[] flat = new float[vectorSize];
+                    for (int mean = 0; mean < codewords.length; mean++) {
+                        Arrays.fill(flat, mean);
+                        codewords[mean] = search.findNearest(flat, 0);
+                    }
+                    return codewords;
+                });
+            }
+        }
+        return flatCodewords;
+    }
+
+    private CompressedImage encode(BufferedImage original, CodebookSearch[] searches,
+                                   Map<String, double[][]> codebooks, int colorSpace, Replenishment replenishment) {
         int width = original.getWidth();
         int height = original.getHeight();
-        BufferedImage compressed = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int blocksPerRow = width / blockWidth;
+        int blockRows = height / blockHeight;
 
-        for (int y = 0; y < height - 1; y += 2) {
-            for (int x = 0; x < width - 1; x += 2) {
-                double[] redVector = new double[VECTOR_SIZE];
-                double[] greenVector = new double[VECTOR_SIZE];
-                double[] blueVector = new double[VECTOR_SIZE];
-                
-                extractVectorFromBlock(original, x, y, redVector, greenVector, blueVector);
+        CodebookSearch redCodebook = searches[0];
+        CodebookSearch greenCodebook = searches[1];
+        CodebookSearch blueCodebook = searches[2];
+        int[][] flatCodewords = flatCodewordsFor(searches);
+        LongAdder flatBlocks = new LongAdder();
 
-                double[] redCodeword = findNearestCodeword(redVector, codebooks.get("red"));
-                double[] greenCodeword = findNearestCodeword(greenVector, codebooks.get("green"));
-                double[] blueCodeword = findNearestCodeword(blueVector, codebooks.get("blue"));
+        int[] redIndices = new int[blocksPerRow * blockRows];
+        int[] greenIndices = new int[blocksPerRow * blockRows];
+        int[] blueIndices = new int[blocksPerRow * blockRows];
 
-                reconstructBlock(compressed, x, y, redCodeword, greenCodeword, blueCodeword);
+        forEachStripe(blockRows, (fromRow, toRow) -> {
+            int[] rowPixels = new int[width * blockHeight];
+            float[] vectors = new float[3 * vectorSize];
+            int[] flat = new int[1];
+
+            int reused = 0;
+            for (int by = fromRow; by < toRow; by++) {
+                original.getRGB(0, by * blockHeight, width, blockHeight, rowPixels, 0, width);
+                for (int bx = 0; bx < blocksPerRow; bx++) {
+                    int block = by * blocksPerRow + bx;
+                    if (replenishment != null && replenishment.reuse(rowPixels, width, bx, by, block,
+                            redIndices, greenIndices, blueIndices)) {
+                        reused++;
+                        continue;
+                    }
+                    extractVectorFromBlock(rowPixels, width, bx * blockWidth, vectors);
+
+                    redIndices[block] = quantize(redCodebook, flatCodewords[0], vectors, 0, flat);
+                    greenIndices[block] = quantize(greenCodebook, flatCodewords[1], vectors, vectorSize, flat);
+                    blueIndices[block] = quantize(blueCodebook, flatCodewords[2], vectors, 2 * vectorSize, flat);
+                }
             }
-        }
+            flatBlocks.add(flat[0]);
+            if (replenishment != null) {
+                replenishment.reusedBlocks.add(reused);
+            }
+        });
 
-        return compressed;
+        return new CompressedImage(width, height, colorSpace, blockWidth, blockHeight, RGB_CHANNELS,
+                new int[][] {redIndices, greenIndices, blueIndices}, codebooks)
+            .withFlatBlockCount(flatBlocks.sum());
     }
 
-    public BufferedImage compressYUV(BufferedImage yuvImage, Map<String, double[][]> codebooks) {
-        return compressRGB(yuvImage, codebooks);
+    private int[] encodePlane(byte[] plane, int width, int height, CodebookSearch search, int[] flatCodewords,
+                              LongAdder flatBlocks) {
+        int blocksPerRow = width / blockWidth;
+        int blockRows = height / blockHeight;
+        int[] indices = new int[blocksPerRow * blockRows];
+
+        forEachStripe(blockRows, (fromRow, toRow) -> {
+            float[] vector = new float[vectorSize];
+            int[] flat = new int[1];
+            for (int by = fromRow; by < toRow; by++) {
+                for (int bx = 0; bx < blocksPerRow; bx++) {
+                    int idx = 0;
+                    for (int dy = 0; dy < blockHeight; dy++) {
+                        int offset = (by * blockHeight + dy) * width + bx * blockWidth;
+                        for (int dx = 0; dx < blockWidth; dx++) {
+                            vector[idx++] = plane[offset + dx] & 0xFF;
+                        }
+                    }
+                    indices[by * blocksPerRow + bx] = quantize(search, flatCodewords, vector, 0, flat);
+                }
+            }
+            flatBlocks.add(flat[0]);
+        });
+
+        return indices;
     }
 
-    private void extractVectorFromBlock(BufferedImage image, int x, int y, 
-                                      double[] redVector, double[] greenVector, double[] blueVector) {
-        int idx = 0;
-        for (int dy = 0; dy < 2; dy++) {
-            for (int dx = 0; dx < 2; dx++) {
-                int rgb = image.getRGB(x + dx, y + dy);
-                redVector[idx] = (rgb >> 16) & 0xFF;
-                greenVector[idx] = (rgb >> 8) & 0xFF;
-                blueVector[idx] = rgb & 0xFF;
-                idx++;
+    // Smooth areas give blocks that a single gray level reproduces about as
+    // well as any codeword; those skip the search, are counted in flat[0]
+    // and take the codeword precomputed for their mean. Samples are whole
+    // numbers, so the test is exact. With flatExact they are coded by the
+    // mean itself instead, rounded to a multiple of flatStep, which adds at
+    // most a quarter of the threshold to the error but makes the means much
+    // cheaper to code.
+    private int quantize(CodebookSearch search, int[] flatCodewords, float[] vector, int offset, int[] flat) {
+        if (flatThreshold > 0) {
+            int sum = 0;
+            for (int i = offset; i < offset + vectorSize; i++) {
+                sum += (int) vector[i];
+            }
+            int mean = (sum + vectorSize / 2) / vectorSize;
+            int deviation = 0;
+            for (int i = offset; i < offset + vectorSize; i++) {
+                int d = (int) vector[i] - mean;
+                deviation += d * d;
+            }
+            if (deviation <= flatThreshold * vectorSize) {
+                flat[0]++;
+                if (flatCodewords != null) {
+                    return flatCodewords[mean];
+                }
+                int level = (sum + vectorSize * flatStep / 2) / (vectorSize * flatStep) * flatStep;
+                return CompressedImage.flatIndex(search.size(), Math.min(level, CompressedImage.FLAT_LEVELS - 1));
             }
         }
+        return search.findNearest(vector, offset);
     }
 
-    private double[] findNearestCodeword(double[] vector, double[][] codebook) {
-        double minDist = Double.MAX_VALUE;
-        double[] nearest = null;
+    public BufferedImage decode(CompressedImage compressed) {
+        if (compressed.getColorSpace() == CompressedImage.COLOR_SPACE_YUV420) {
+            return converter.fromPlanarYuv(decodePlanes(compressed));
+        }
+
+        int width = compressed.getWidth();
+        int height = compressed.getHeight();
+        BufferedImage decoded = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) decoded.getRaster().getDataBuffer()).getData();
+
+        int blocksPerRow = compressed.getBlocksPerRow();
+        int blockRows = compressed.getBlockRows();
+        int blockWidth = compressed.getBlockWidth();
+        int blockHeight = compressed.getBlockHeight();
 
-        for (double[] codeword : codebook) {
-            double dist = calculateDistance(vector, codeword);
-            if (dist < minDist) {
-                minDist = dist;
-                nearest = codeword;
+        int[][] redTable = toPixelTable(compressed.getCodebook(0));
+        int[][] greenTable = toPixelTable(compressed.getCodebook(1));
+        int[][] blueTable = toPixelTable(compressed.getCodebook(2));
+        int[] redIndices = compressed.getIndices(0);
+        int[] greenIndices = compressed.getIndices(1);
+        int[] blueIndices = compressed.getIndices(2);
+
+        forEachStripe(blockRows, (fromRow, toRow) -> {
+            for (int by = fromRow; by < toRow; by++) {
+                for (int bx = 0; bx < blocksPerRow; bx++) {
+                    int block = by * blocksPerRow + bx;
+                    int[] red = redTable[redIndices[block]];
+                    int[] green = greenTable[greenIndices[block]];
+                    int[] blue = blueTable[blueIndices[block]];
+
+                    int idx = 0;
+                    for (int dy = 0; dy < blockHeight; dy++) {
+                        int offset = (by * blockHeight + dy) * width + bx * blockWidth;
+                        for (int dx = 0; dx < blockWidth; dx++) {
+                            pixels[offset + dx] = (red[idx] << 16) | (green[idx] << 8) | blue[idx];
+                            idx++;
+                        }
+                    }
+                }
             }
+        });
+
+        return decoded;
+    }
+
+    public YuvPlanes decodePlanes(CompressedImage compressed) {
+        if (compressed.getColorSpace() != CompressedImage.COLOR_SPACE_YUV420) {
+            throw new IllegalArgumentException("Not a planar YUV image: color space " + compressed.getColorSpace());
         }
+        YuvPlanes planes = new YuvPlanes(compressed.getWidth(), compressed.getHeight());
+        for (int c = 0; c < YuvPlanes.CHANNELS.length; c++) {
+            decodePlane(compressed, c, planes.getPlane(c), planes.getPlaneWidth(c), planes.getPlaneHeight(c));
+        }
+        return planes;
+    }
+
+    private void decodePlane(CompressedImage compressed, int channel, byte[] plane, int width, int height) {
+        int blockWidth = compressed.getBlockWidth();
+        int blockHeight = compressed.getBlockHeight();
+        int blocksPerRow = compressed.getBlocksPerRow(channel);
+        int blockRows = compressed.getBlockRows(channel);
+        int[][] table = toPixelTable(compressed.getCodebook(channel));
+        int[] indices = compressed.getIndices(channel);
 
-        return nearest;
+        forEachStripe(blockRows, (fromRow, toRow) -> {
+            for (int by = fromRow; by < toRow; by++) {
+                for (int bx = 0; bx < blocksPerRow; bx++) {
+                    int[] codeword = table[indices[by * blocksPerRow + bx]];
+                    int idx = 0;
+                    for (int dy = 0; dy < blockHeight; dy++) {
+                        int offset = (by * blockHeight + dy) * width + bx * blockWidth;
+                        for (int dx = 0; dx < blockWidth; dx++) {
+                            plane[offset + dx] = (byte) codeword[idx++];
+                        }
+                    }
+                }
+            }
+        });
+
+        // Odd plane sizes leave a column or row outside the block grid; repeat
+        // the nearest coded sample rather than leaving it at zero.
+        int codedWidth = blocksPerRow * blockWidth;
+        int codedHeight = blockRows * blockHeight;
+        if (codedWidth == 0 || codedHeight == 0) {
+            return;
+        }
+        for (int y = 0; y < codedHeight; y++) {
+            for (int x = codedWidth; x < width; x++) {
+                plane[y * width + x] = plane[y * width + codedWidth - 1];
+            }
+        }
+        for (int y = codedHeight; y < height; y++) {
+            System.arraycopy(plane, (codedHeight - 1) * width, plane, y * width, width);
+        }
     }
 
-    private double calculateDistance(double[] v1, double[] v2) {
-        double sum = 0;
-        for (int i = 0; i < v1.length; i++) {
-            double diff = v1[i] - v2[i];
-            sum += diff * diff;
+    // Codewords first, then one constant block per flat level, so flat
+    // indices decode through the same lookup.
+    private int[][] toPixelTable(double[][] codebook) {
+        int[][] table = new int[codebook.length + CompressedImage.FLAT_LEVELS][];
+        for (int i = 0; i < codebook.length; i++) {
+            table[i] = new int[codebook[i].length];
+            for (int j = 0; j < codebook[i].length; j++) {
+                table[i][j] = (int) codebook[i][j];
+            }
+        }
+        for (int mean = 0; mean < CompressedImage.FLAT_LEVELS; mean++) {
+            int[] flat = new int[codebook[0].length];
+            Arrays.fill(flat, mean);
+            table[CompressedImage.flatIndex(codebook.length, mean)] = flat;
         }
-        return Math.sqrt(sum);
+        return table;
     }
 
-    private void reconstructBlock(BufferedImage image, int x, int y, 
-                                double[] redCodeword, double[] greenCodeword, double[] blueCodeword) {
+    private void forEachStripe(int blockRows, ParallelRange.Body worker) {
+        ParallelRange.forEach(pool, blockRows, STRIPE_BLOCK_ROWS, worker);
+    }
+
+    private void extractVectorFromBlock(int[] rowPixels, int width, int x, float[] vectors) {
         int idx = 0;
-        for (int dy = 0; dy < 2; dy++) {
-            for (int dx = 0; dx < 2; dx++) {
-                int r = (int) redCodeword[idx];
-                int g = (int) greenCodeword[idx];
-                int b = (int) blueCodeword[idx];
-                int rgb = (r << 16) | (g << 8) | b;
-                image.setRGB(x + dx, y + dy, rgb);
+        for (int dy = 0; dy < blockHeight; dy++) {
+            for (int dx = 0; dx < blockWidth; dx++) {
+                int rgb = rowPixels[dy * width + x + dx];
+                vectors[idx] = (rgb >> 16) & 0xFF;
+                vectors[vectorSize + idx] = (rgb >> 8) & 0xFF;
+                vectors[2 * vectorSize + idx] = rgb & 0xFF;
                 idx++;
             }
         }
     }
-}
\ No newline at end of file
+
+    private class Replenishment {
+        final int[][] previousIndices;
+        final int[] reference;
+        final int reuseThreshold;
+        final LongAdder reusedBlocks;
+
+        Replenishment(CompressedImage previous, int[] reference, int reuseThreshold, LongAdder reusedBlocks) {
+            this.previousIndices = new int[RGB_CHANNELS.length][];
+            for (int c = 0; c < RGB_CHANNELS.length; c++) {
+                previousIndices[c] = previous.getIndices(c);
+            }
+            this.reference = reference;
+            this.reuseThreshold = reuseThreshold;
+            this.reusedBlocks = reusedBlocks;
+        }
+
+        // Copies the previous indices and returns true for an unchanged
+        // block; otherwise stores the block's pixels as its new reference.
+        boolean reuse(int[] rowPixels, int width, int bx, int by, int block,
+                      int[] redIndices, int[] greenIndices, int[] blueIndices) {
+            int x = bx * blockWidth;
+            int difference = 0;
+            for (int dy = 0; dy < blockHeight; dy++) {
+                int row = (by * blockHeight + dy) * width;
+                for (int dx = 0; dx < blockWidth; dx++) {
+                    int current = rowPixels[dy * width + x + dx];
+                    int previous = reference[row + x + dx];
+                    int dr = ((current >> 16) & 0xFF) - ((previous >> 16) & 0xFF);
+                    int dg = ((current >> 8) & 0xFF) - ((previous >> 8) & 0xFF);
+                    int db = (current & 0xFF) - (previous & 0xFF);
+                    difference += dr * dr + dg * dg + db * db;
+                }
+            }
+            if (difference <= reuseThreshold * 3 * vectorSize) {
+                redIndices[block] = previousIndices[0][block];
+                greenIndices[block] = previousIndices[1][block];
+                blueIndices[block] = previousIndices[2][block];
+                return true;
+            }
+            for (int dy = 0; dy < blockHeight; dy++) {
+                System.arraycopy(rowPixels, dy * width + x, reference, (by * blockHeight + dy) * width + x,
+                    blockWidth);
+            }
+            return false;
+        }
+    }
+}
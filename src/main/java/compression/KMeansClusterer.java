@@ -0,0 +1,501 @@
+package main.java.compression;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import main.java.compression.utils.ParallelRange;
+
+// Lloyd's k-means over PackedVectors, accelerated with Hamerly's
+// bounds: every vector keeps an upper bound on the distance to its centroid
+// and a lower bound on the distance to any other centroid, so once
+// centroids settle most vectors keep their assignment without a search.
+// The assignment step is split into fixed chunks, one per worker; each
+// worker accumulates per-cluster sums and counts in its own primitive
+// arrays, which are reduced once per iteration. Workers and buffers are
+// allocated once per run, not per iteration. Vectors are unpacked to floats
+// a batch at a time, so the packed store is read straight through and never
+// expanded as a whole, and the per-vector assignments and bounds live in
+// direct buffers next to it, so the heap holds only per-cluster state.
+public class KMeansClusterer {
+    private static final int BATCH = 1024;
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final int maxIterations;
+    private final double convergenceThreshold;
+
+    public KMeansClusterer(int parallelism, int maxIterations, double convergenceThreshold) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.maxIterations = maxIterations;
+        this.convergenceThreshold = convergenceThreshold;
+    }
+
+    // k-means++ seeding: each further centroid is drawn with probability
+    // proportional to the squared distance to the nearest one chosen so far,
+    // which spreads the initial codewords and avoids duplicates.
+    public double[][] initialize(PackedVectors vectors, int count, int clusters, Random random) {
+        if (count < 1) {
+            throw new IllegalArgumentException("No training vectors to initialize " + clusters + " clusters from");
+        }
+        if (clusters < 1) {
+            throw new IllegalArgumentException("Cluster count must be positive: " + clusters);
+        }
+        int dimension = vectors.getDimension();
+        double[][] codebook = new double[clusters][dimension];
+        Column nearestDist = new Column(count, Double.BYTES);
+        nearestDist.fill(Double.MAX_VALUE);
+        byte[] bytes = new byte[BATCH * dimension];
+        float[] batch = new float[BATCH * dimension];
+
+        int chosen = random.nextInt(count);
+        for (int k = 0; k < clusters; k++) {
+            for (int j = 0; j < dimension; j++) {
+                codebook[k][j] = vectors.get(chosen, j);
+            }
+            // The distances only serve to pick the next centroid.
+            if (k == clusters - 1) {
+                break;
+            }
+
+            double total = 0;
+            for (int from = 0; from < count; from += BATCH) {
+                int batchSize = Math.min(BATCH, count - from);
+                vectors.unpack(from, batchSize, bytes, batch);
+                for (int b = 0; b < batchSize; b++) {
+                    double dist = 0;
+                    for (int j = 0; j < dimension; j++) {
+                        double diff = batch[b * dimension + j] - codebook[k][j];
+                        dist += diff * diff;
+                    }
+                    int i = from + b;
+                    dist = Math.min(nearestDist.getDouble(i), dist);
+                    nearestDist.putDouble(i, dist);
+                    total += dist;
+                }
+            }
+
+            if (total == 0) {
+                chosen = random.nextInt(count);
+                continue;
+            }
+            double target = random.nextDouble() * total;
+            chosen = count - 1;
+            for (int i = 0; i < count; i++) {
+                target -= nearestDist.getDouble(i);
+                if (target < 0) {
+                    chosen = i;
+                    break;
+                }
+            }
+        }
+
+        return codebook;
+    }
+
+    public Result cluster(PackedVectors vectors, int count, double[][] initialCodebook) {
+        int clusters = initialCodebook.length;
+        int dimension = initialCodebook[0].length;
+
+        float[] centroids = new float[clusters * dimension];
+        double[][] codebook = new double[clusters][];
+        for (int k = 0; k < clusters; k++) {
+            codebook[k] = initialCodebook[k].clone();
+            for (int j = 0; j < dimension; j++) {
+                centroids[k * dimension + j] = (float) codebook[k][j];
+            }
+        }
+
+        Column assignments = new Column(count, Integer.BYTES);
+        Column upper = new Column(count, Double.BYTES);
+        Column lower = new Column(count, Double.BYTES);
+        upper.fill(Double.MAX_VALUE);
+        double[] halfSeparation = new double[clusters];
+        double[] shifts = new double[clusters];
+        BoundShift boundShift = new BoundShift();
+
+        int workerCount = Math.max(1, Math.min(parallelism, count / 1024));
+        AssignmentWorker[] workers = new AssignmentWorker[workerCount];
+        for (int w = 0; w < workerCount; w++) {
+            workers[w] = new AssignmentWorker(vectors, centroids, clusters, dimension,
+                assignments, upper, lower, halfSeparation, boundShift,
+                (int) ((long) count * w / workerCount), (int) ((long) count * (w + 1) / workerCount));
+        }
+
+        double[] sums = new double[clusters * dimension];
+        long[] counts = new long[clusters];
+        double threshold = convergenceThreshold * convergenceThreshold;
+        long distanceEvaluations = 0;
+        int iterations = 0;
+        int reseeded = 0;
+
+        while (iterations < maxIterations) {
+            computeHalfSeparation(centroids, clusters, dimension, halfSeparation);
+            distanceEvaluations += (long) clusters * (clusters - 1) / 2;
+            // Rebuilt per iteration since the centroids moved; null falls back
+            // to the scalar search.
+            DistanceKernel kernel = VectorSupport.create(centroids, clusters, dimension);
+            for (AssignmentWorker worker : workers) {
+                worker.kernel = kernel;
+            }
+            runWorkers(workers);
+            iterations++;
+
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (AssignmentWorker worker : workers) {
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] += worker.sums[i];
+                }
+                for (int k = 0; k < clusters; k++) {
+                    counts[k] += worker.counts[k];
+                }
+                distanceEvaluations += worker.distanceEvaluations;
+            }
+
+            double maxShift = 0;
+            for (int k = 0; k < clusters; k++) {
+                double shift = 0;
+                for (int j = 0; j < dimension; j++) {
+                    double centroid;
+                    if (counts[k] > 0) {
+                        centroid = sums[k * dimension + j] / counts[k];
+                    } else {
+                        centroid = codebook[k][j];
+                    }
+                    double diff = centroid - codebook[k][j];
+                    shift += diff * diff;
+                    codebook[k][j] = centroid;
+                }
+                shifts[k] = shift;
+                maxShift = Math.max(maxShift, shift);
+            }
+
+            for (int k = 0; k < clusters; k++) {
+                if (counts[k] == 0) {
+                    shifts[k] += reseed(k, vectors, count, dimension, codebook, assignments, upper, lower);
+                    maxShift = Math.max(maxShift, shifts[k]);
+                    reseeded++;
+                }
+            }
+
+            for (int k = 0; k < clusters; k++) {
+                shifts[k] = Math.sqrt(shifts[k]);
+                for (int j = 0; j < dimension; j++) {
+                    centroids[k * dimension + j] = (float) codebook[k][j];
+                }
+            }
+            boundShift.update(shifts);
+
+            if (maxShift <= threshold) break;
+        }
+
+        double distortion = 0;
+        byte[] bytes = new byte[BATCH * dimension];
+        float[] batch = new float[BATCH * dimension];
+        for (int from = 0; from < count; from += BATCH) {
+            int batchSize = Math.min(BATCH, count - from);
+            vectors.unpack(from, batchSize, bytes, batch);
+            for (int b = 0; b < batchSize; b++) {
+                distortion += squaredDistance(batch, b * dimension, centroids, assignments.getInt(from + b) * dimension,
+                    dimension);
+            }
+        }
+
+        return new Result(codebook, iterations, distortion / count, distanceEvaluations,
+            (long) iterations * count * clusters, reseeded);
+    }
+
+    // Moves an empty cluster onto the vector with the loosest bound, i.e. the
+    // one most likely to be badly represented, and makes it that vector's
+    // exact centroid so the same vector is not picked twice.
+    private double reseed(int cluster, PackedVectors vectors, int count, int dimension, double[][] codebook,
+                          Column assignments, Column upper, Column lower) {
+        int farthest = 0;
+        double farthestBound = upper.getDouble(0);
+        for (int i = 1; i < count; i++) {
+            if (upper.getDouble(i) > farthestBound) {
+                farthest = i;
+                farthestBound = upper.getDouble(i);
+            }
+        }
+
+        double shift = 0;
+        for (int j = 0; j < dimension; j++) {
+            double value = vectors.get(farthest, j);
+            double diff = value - codebook[cluster][j];
+            shift += diff * diff;
+            codebook[cluster][j] = value;
+        }
+        assignments.putInt(farthest, cluster);
+        upper.putDouble(farthest, 0);
+        lower.putDouble(farthest, 0);
+        return shift;
+    }
+
+    private static void computeHalfSeparation(float[] centroids, int clusters, int dimension, double[] halfSeparation) {
+        Arrays.fill(halfSeparation, Double.MAX_VALUE);
+        for (int a = 0; a < clusters; a++) {
+            for (int b = a + 1; b < clusters; b++) {
+                double dist = Math.sqrt(squaredDistance(centroids, a * dimension, centroids, b * dimension, dimension)) / 2;
+                halfSeparation[a] = Math.min(halfSeparation[a], dist);
+                halfSeparation[b] = Math.min(halfSeparation[b], dist);
+            }
+        }
+    }
+
+    private static double squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int dimension) {
+        double dist = 0;
+        for (int j = 0; j < dimension; j++) {
+            double diff = a[aOffset + j] - b[bOffset + j];
+            dist += diff * diff;
+        }
+        return dist;
+    }
+
+    private void runWorkers(AssignmentWorker[] workers) {
+        ParallelRange.forEach(pool, workers.length, 1, (from, to) -> {
+            for (int w = from; w < to; w++) {
+                workers[w].compute();
+            }
+        });
+    }
+
+    public static class Result {
+        private final double[][] codebook;
+        private final int iterations;
+        private final double distortion;
+        private final long distanceEvaluations;
+        private final long bruteForceEvaluations;
+        private final int reseededClusters;
+
+        Result(double[][] codebook, int iterations, double distortion, long distanceEvaluations,
+               long bruteForceEvaluations, int reseededClusters) {
+            this.codebook = codebook;
+            this.iterations = iterations;
+            this.distortion = distortion;
+            this.distanceEvaluations = distanceEvaluations;
+            this.bruteForceEvaluations = bruteForceEvaluations;
+            this.reseededClusters = reseededClusters;
+        }
+
+        public double[][] getCodebook() {
+            return codebook;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        // Mean squared distance from each training vector to its codeword.
+        public double getDistortion() {
+            return distortion;
+        }
+
+        public long getDistanceEvaluations() {
+            return distanceEvaluations;
+        }
+
+        public long getBruteForceEvaluations() {
+            return bruteForceEvaluations;
+        }
+
+        public int getReseededClusters() {
+            return reseededClusters;
+        }
+    }
+
+    // Largest and second largest centroid movement of the last update; a
+    // vector's lower bound shrinks by the largest movement of any centroid
+    // other than its own.
+    private static class BoundShift {
+        private double[] shifts;
+        private int largest = -1;
+        private double largestShift;
+        private double secondShift;
+
+        void update(double[] shifts) {
+            this.shifts = shifts;
+            largest = 0;
+            largestShift = 0;
+            secondShift = 0;
+            for (int k = 0; k < shifts.length; k++) {
+                if (shifts[k] > largestShift) {
+                    secondShift = largestShift;
+                    largestShift = shifts[k];
+                    largest = k;
+                } else if (shifts[k] > secondShift) {
+                    secondShift = shifts[k];
+                }
+            }
+        }
+    }
+
+    private static class AssignmentWorker {
+        private final PackedVectors vectors;
+        private final float[] centroids;
+        private final int clusters;
+        private final int dimension;
+        private final Column assignments;
+        private final Column upper;
+        private final Column lower;
+        private final double[] halfSeparation;
+        private final BoundShift boundShift;
+        private final int from;
+        private final int to;
+        private final double[] sums;
+        private final long[] counts;
+        private final float[] distances;
+        private final byte[] bytes;
+        private final float[] batch;
+        private DistanceKernel kernel;
+        private long distanceEvaluations;
+        private float nearestDist;
+        private float secondDist;
+
+        AssignmentWorker(PackedVectors vectors, float[] centroids, int clusters, int dimension,
+                         Column assignments, Column upper, Column lower, double[] halfSeparation,
+                         BoundShift boundShift, int from, int to) {
+            this.vectors = vectors;
+            this.centroids = centroids;
+            this.clusters = clusters;
+            this.dimension = dimension;
+            this.assignments = assignments;
+            this.upper = upper;
+            this.lower = lower;
+            this.halfSeparation = halfSeparation;
+            this.boundShift = boundShift;
+            this.from = from;
+            this.to = to;
+            this.sums = new double[clusters * dimension];
+            this.counts = new long[clusters];
+            this.distances = new float[clusters];
+            this.bytes = new byte[BATCH * dimension];
+            this.batch = new float[BATCH * dimension];
+        }
+
+        void compute() {
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            distanceEvaluations = 0;
+            double[] shifts = boundShift.shifts;
+
+            for (int i = from; i < to; i++) {
+                if ((i - from) % BATCH == 0) {
+                    vectors.unpack(i, Math.min(BATCH, to - i), bytes, batch);
+                }
+                int base = (i - from) % BATCH * dimension;
+                int assigned = assignments.getInt(i);
+                double upperBound = upper.getDouble(i);
+                double lowerBound = lower.getDouble(i);
+
+                if (shifts != null) {
+                    upperBound += shifts[assigned];
+                    lowerBound -= assigned == boundShift.largest ? boundShift.secondShift : boundShift.largestShift;
+                }
+
+                double bound = Math.max(halfSeparation[assigned], lowerBound);
+                if (upperBound > bound) {
+                    upperBound = Math.sqrt(squaredDistance(batch, base, centroids, assigned * dimension, dimension));
+                    distanceEvaluations++;
+                    if (upperBound > bound) {
+                        assigned = searchTwoNearest(base);
+                        assignments.putInt(i, assigned);
+                        upperBound = Math.sqrt(nearestDist);
+                        lowerBound = Math.sqrt(secondDist);
+                    }
+                }
+                upper.putDouble(i, upperBound);
+                lower.putDouble(i, lowerBound);
+
+                counts[assigned]++;
+                for (int j = 0; j < dimension; j++) {
+                    sums[assigned * dimension + j] += batch[base + j];
+                }
+            }
+        }
+
+        // Leaves the two smallest squared distances in nearestDist and
+        // secondDist.
+        private int searchTwoNearest(int base) {
+            if (kernel != null) {
+                kernel.distances(batch, base, distances);
+            }
+            int nearest = 0;
+            float nearestDist = Float.MAX_VALUE;
+            float secondDist = Float.MAX_VALUE;
+            for (int k = 0, centroid = 0; k < clusters; k++, centroid += dimension) {
+                float dist;
+                if (kernel != null) {
+                    dist = distances[k];
+                } else {
+                    dist = 0;
+                    for (int j = 0; j < dimension; j++) {
+                        float diff = batch[base + j] - centroids[centroid + j];
+                        dist += diff * diff;
+                    }
+                }
+                if (dist < secondDist) {
+                    if (dist < nearestDist) {
+                        secondDist = nearestDist;
+                        nearestDist = dist;
+                        nearest = k;
+                    } else {
+                        secondDist = dist;
+                    }
+                }
+            }
+            distanceEvaluations += clusters;
+            this.nearestDist = nearestDist;
+            this.secondDist = secondDist;
+            return nearest;
+        }
+    }
+
+    // One int or double per training vector in direct buffers, split into
+    // chunks so that more than 2 GB fit.
+    private static final class Column {
+        private static final int CHUNK_SHIFT = 27;
+        private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+        private final ByteBuffer[] chunks;
+
+        Column(int count, int elementBytes) {
+            chunks = new ByteBuffer[(int) (((long) count + CHUNK_MASK) >>> CHUNK_SHIFT)];
+            for (int c = 0; c < chunks.length; c++) {
+                int elements = Math.min(count - (c << CHUNK_SHIFT), 1 << CHUNK_SHIFT);
+                chunks[c] = ByteBuffer.allocateDirect(elements * elementBytes).order(ByteOrder.nativeOrder());
+            }
+        }
+
+        int getInt(int i) {
+            return chunks[i >>> CHUNK_SHIFT].getInt((i & CHUNK_MASK) << 2);
+        }
+
+        void putInt(int i, int value) {
+            chunks[i >>> CHUNK_SHIFT].putInt((i & CHUNK_MASK) << 2, value);
+        }
+
+        double getDouble(int i) {
+            return chunks[i >>> CHUNK_SHIFT].getDouble((i & CHUNK_MASK) << 3);
+        }
+
+        void putDouble(int i, double value) {
+            chunks[i >>> CHUNK_SHIFT].putDouble((i & CHUNK_MASK) << 3, value);
+        }
+
+        void fill(double value) {
+            for (ByteBuffer chunk : chunks) {
+                for (int offset = 0; offset < chunk.capacity(); offset += Double.BYTES) {
+                    chunk.putDouble(offset, value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package main.java.compression;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Training vectors of 8-bit samples packed one byte per component outside
+// the Java heap, a quarter of the memory of float vectors and nothing for
+// the collector to trace. Storage is split into chunks of whole vectors so
+// it can grow past the 2 GB limit of a single buffer; a mapped store keeps
+// the chunks in a temporary file instead of memory, letting the OS page
+// them out.
+public class PackedVectors {
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final ByteBuffer[] chunks;
+    private final int capacity;
+    private final int dimension;
+    private final int chunkVectors;
+
+    private PackedVectors(int capacity, int dimension, ByteBuffer[] chunks, int chunkVectors) {
+        this.capacity = capacity;
+        this.dimension = dimension;
+        this.chunks = chunks;
+        this.chunkVectors = chunkVectors;
+    }
+
+    public static PackedVectors allocate(int capacity, int dimension) {
+        checkSize(capacity, dimension);
+        int chunkVectors = chunkVectors(capacity, dimension);
+        ByteBuffer[] chunks = new ByteBuffer[chunkCount(capacity, chunkVectors)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(chunkBytes(i, capacity, dimension, chunkVectors));
+        }
+        return new PackedVectors(capacity, dimension, chunks, chunkVectors);
+    }
+
+    // Backs the vectors with a file in directory. The file is deleted right
+    // away; its pages stay reachable through the mapping until the store is
+    // garbage collected.
+    public static PackedVectors mapped(int capacity, int dimension, Path directory) {
+        checkSize(capacity, dimension);
+        int chunkVectors = chunkVectors(capacity, dimension);
+        ByteBuffer[] chunks = new ByteBuffer[chunkCount(capacity, chunkVectors)];
+        try {
+            Path file = Files.createTempFile(directory, "vectors", ".bin");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                long position = 0;
+                for (int i = 0; i < chunks.length; i++) {
+                    int bytes = chunkBytes(i, capacity, dimension, chunkVectors);
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, bytes);
+                    position += bytes;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map training vectors in " + directory, e);
+        }
+        return new PackedVectors(capacity, dimension, chunks, chunkVectors);
+    }
+
+    private static void checkSize(int capacity, int dimension) {
+        if (capacity < 1 || dimension < 1) {
+            throw new IllegalArgumentException("Capacity and dimension must be positive: " + capacity + ", "
+                + dimension);
+        }
+    }
+
+    private static int chunkVectors(int capacity, int dimension) {
+        return Math.min(capacity, MAX_CHUNK_BYTES / dimension);
+    }
+
+    private static int chunkCount(int capacity, int chunkVectors) {
+        return (int) ((capacity + (long) chunkVectors - 1) / chunkVectors);
+    }
+
+    private static int chunkBytes(int chunk, int capacity, int dimension, int chunkVectors) {
+        return Math.min(chunkVectors, capacity - chunk * chunkVectors) * dimension;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    // Stores the dimension bytes of values as vector `vector`.
+    public void put(int vector, byte[] values) {
+        chunks[vector / chunkVectors].put(vector % chunkVectors * dimension, values, 0, dimension);
+    }
+
+    public int get(int vector, int component) {
+        return chunks[vector / chunkVectors].get(vector % chunkVectors * dimension + component) & 0xFF;
+    }
+
+    // Unpacks count consecutive vectors starting at `from` into out as floats,
+    // using bytes (at least count * dimension long) as scratch space.
+    public void unpack(int from, int count, byte[] bytes, float[] out) {
+        int done = 0;
+        while (done < count) {
+            int vector = from + done;
+            int inChunk = Math.min(count - done, chunkVectors - vector % chunkVectors);
+            chunks[vector / chunkVectors].get(vector % chunkVectors * dimension, bytes, done * dimension,
+                inChunk * dimension);
+            done += inChunk;
+        }
+        for (int i = 0; i < count * dimension; i++) {
+            out[i] = bytes[i] & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package main.java.compression;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Exact nearest-codeword index. Codewords are sorted by their projection
+// onto the codebook's principal axis; since a projection onto a unit axis
+// never exceeds the true distance, the search walks outwards from the
+// query's projection and stops in each direction once the projection gap
+// alone is larger than the best distance found. Results match FlatCodebook.
+public class ProjectionIndex implements CodebookSearch {
+    private static final int POWER_ITERATIONS = 50;
+    private static final double BOUND_SLACK = 1e-4;
+
+    private final FlatCodebook codebook;
+    private final double[] axis;
+    private final double[] projections;
+    private final int[] order;
+    private final int size;
+    private final int dimension;
+
+    public ProjectionIndex(double[][] codebook) {
+        this.codebook = new FlatCodebook(codebook, false);
+        this.size = codebook.length;
+        this.dimension = codebook[0].length;
+        this.axis = principalAxis(codebook);
+
+        double[] unsorted = new double[size];
+        Integer[] sorted = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            unsorted[i] = project(codebook[i]);
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, Comparator.comparingDouble(i -> unsorted[i]));
+
+        this.order = new int[size];
+        this.projections = new double[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = sorted[i];
+            projections[i] = unsorted[sorted[i]];
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int dimension() {
+        return dimension;
+    }
+
+    @Override
+    public int findNearest(float[] vector, int offset) {
+        double query = 0;
+        for (int j = 0; j < dimension; j++) {
+            query += vector[offset + j] * axis[j];
+        }
+
+        int hi = lowerBound(query);
+        int lo = hi - 1;
+        int nearest = -1;
+        float minDist = Float.MAX_VALUE;
+        double bound = Double.MAX_VALUE;
+
+        while (lo >= 0 || hi < size) {
+            double loGap = lo >= 0 ? query - projections[lo] : Double.MAX_VALUE;
+            double hiGap = hi < size ? projections[hi] - query : Double.MAX_VALUE;
+            int candidate;
+            double gap;
+            if (loGap <= hiGap) {
+                candidate = order[lo--];
+                gap = loGap;
+            } else {
+                candidate = order[hi++];
+                gap = hiGap;
+            }
+            // Both directions are exhausted once the nearer gap exceeds the bound.
+            if (gap * gap > bound) {
+                break;
+            }
+
+            float dist = codebook.distance(vector, offset, candidate);
+            if (dist < minDist || (dist == minDist && candidate < nearest)) {
+                minDist = dist;
+                nearest = candidate;
+                bound = dist * (1 + BOUND_SLACK) + BOUND_SLACK;
+            }
+        }
+
+        return nearest;
+    }
+
+    private int lowerBound(double query) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (projections[mid] < query) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private double project(double[] codeword) {
+        double projection = 0;
+        for (int j = 0; j < dimension; j++) {
+            projection += codeword[j] * axis[j];
+        }
+        return projection;
+    }
+
+    private static double[] principalAxis(double[][] codebook) {
+        int dimension = codebook[0].length;
+        double[] mean = new double[dimension];
+        for (double[] codeword : codebook) {
+            for (int j = 0; j < dimension; j++) {
+                mean[j] += codeword[j] / codebook.length;
+            }
+        }
+
+        double[][] covariance = new double[dimension][dimension];
+        for (double[] codeword : codebook) {
+            for (int j = 0; j < dimension; j++) {
+                for (int k = 0; k < dimension; k++) {
+                    covariance[j][k] += (codeword[j] - mean[j]) * (codeword[k] - mean[k]);
+                }
+            }
+        }
+
+        double[] axis = new double[dimension];
+        Arrays.fill(axis, 1 / Math.sqrt(dimension));
+        for (int iteration = 0; iteration < POWER_ITERATIONS; iteration++) {
+            double[] next = new double[dimension];
+            for (int j = 0; j < dimension; j++) {
+                for (int k = 0; k < dimension; k++) {
+                    next[j] += covariance[j][k] * axis[k];
+                }
+            }
+            double norm = 0;
+            for (double value : next) {
+                norm += value * value;
+            }
+            norm = Math.sqrt(norm);
+            if (norm == 0) {
+                break;
+            }
+            for (int j = 0; j < dimension; j++) {
+                axis[j] = next[j] / norm;
+            }
+        }
+        return axis;
+    }
+}
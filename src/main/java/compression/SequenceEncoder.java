@@ -0,0 +1,86 @@
+package main.java.compression;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import main.java.compression.utils.PixelAccess;
+
+// Encodes consecutive frames from a fixed camera by conditional
+// replenishment: only blocks that changed since they were last coded are
+// searched, the others keep their indices. Blocks are compared with the
+// pixels their indices were chosen for rather than with the previous frame,
+// so slow changes (light, drifting shadows) still trigger a refresh once
+// they add up to the threshold.
+//
+// Every frame after a key frame comes back with the previous frame as its
+// reference (CompressedImage.withReference), and an entropy-coding
+// VQFileWriter stores reused blocks as a reference to it. Decoding such a
+// frame needs the previous decoded frame, so a key frame every
+// keyFrameInterval frames bounds how far back a reader has to start.
+public class SequenceEncoder {
+    private final ImageCompressor compressor;
+    private final Map<String, double[][]> codebooks;
+    private final int reuseThreshold;
+    private final int keyFrameInterval;
+    private final LongAdder reusedBlocks = new LongAdder();
+    private long totalBlocks;
+    private int framesSinceKeyFrame;
+
+    private CompressedImage previous;
+    private int[] reference;
+
+    public SequenceEncoder(ImageCompressor compressor, Map<String, double[][]> codebooks) {
+        this(compressor, codebooks, VQConfig.load().getReuseThreshold(), 0);
+    }
+
+    // keyFrameInterval 0 makes only the first frame a key frame.
+    public SequenceEncoder(ImageCompressor compressor, Map<String, double[][]> codebooks,
+                           int reuseThreshold, int keyFrameInterval) {
+        if (reuseThreshold < 0 || keyFrameInterval < 0) {
+            throw new IllegalArgumentException("Reuse threshold and key frame interval must not be negative: "
+                + reuseThreshold + ", " + keyFrameInterval);
+        }
+        this.compressor = compressor;
+        this.codebooks = codebooks;
+        this.reuseThreshold = reuseThreshold;
+        this.keyFrameInterval = keyFrameInterval;
+    }
+
+    // A frame of another size starts a new key frame.
+    public CompressedImage encodeRGB(BufferedImage frame) {
+        boolean keyFrame = previous == null || previous.getWidth() != frame.getWidth()
+            || previous.getHeight() != frame.getHeight()
+            || (keyFrameInterval > 0 && framesSinceKeyFrame >= keyFrameInterval);
+
+        CompressedImage encoded;
+        if (keyFrame) {
+            encoded = compressor.encodeRGB(frame, codebooks);
+            reference = Arrays.copyOf(PixelAccess.pixels(frame), frame.getWidth() * frame.getHeight());
+            framesSinceKeyFrame = 0;
+        } else {
+            encoded = compressor.encodeRGBFrame(frame, codebooks, previous, reference, reuseThreshold, reusedBlocks)
+                .withReference(previous);
+        }
+
+        totalBlocks += (long) encoded.getBlocksPerRow() * encoded.getBlockRows();
+        framesSinceKeyFrame++;
+        previous = encoded;
+        return encoded;
+    }
+
+    // The next frame is encoded as a key frame.
+    public void reset() {
+        previous = null;
+        reference = null;
+    }
+
+    public long getReusedBlocks() {
+        return reusedBlocks.sum();
+    }
+
+    public long getTotalBlocks() {
+        return totalBlocks;
+    }
+}
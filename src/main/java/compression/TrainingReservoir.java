@@ -0,0 +1,173 @@
+package main.java.compression;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Uniform sample of training blocks over an unbounded stream of images
+// (reservoir sampling, Algorithm R). Memory is fixed by the capacity, and
+// every block seen so far has the same chance of being in the sample no
+// matter which image it came from. All three channels of a block are kept
+// together so one pass over each image feeds every codebook. Samples are
+// kept as PackedVectors, one byte per component off the heap, so large
+// reservoirs cost a quarter of the memory of float vectors.
+public class TrainingReservoir {
+    private static final int RGB_CHANNELS = 3;
+
+    private final PackedVectors[] vectors;
+    private final byte[][] block;
+    private final int channels;
+    private final int blockWidth;
+    private final int blockHeight;
+    private final int vectorSize;
+    private final int capacity;
+    private final Random random;
+    private long blocksSeen;
+    private int imagesSeen;
+
+    public TrainingReservoir(int capacity) {
+        this(capacity, RGB_CHANNELS);
+    }
+
+    public TrainingReservoir(int capacity, int channels) {
+        this(capacity, channels, new Random());
+    }
+
+    public TrainingReservoir(int capacity, Random random) {
+        this(capacity, RGB_CHANNELS, random);
+    }
+
+    public TrainingReservoir(int capacity, int channels, Random random) {
+        this(capacity, channels, VQConfig.load(), random);
+    }
+
+    public TrainingReservoir(int capacity, int channels, VQConfig config, Random random) {
+        this(capacity, channels, config.getBlockWidth(), config.getBlockHeight(), random);
+    }
+
+    public TrainingReservoir(int capacity, int channels, int blockWidth, int blockHeight, Random random) {
+        this(capacity, channels, blockWidth, blockHeight, random, null);
+    }
+
+    // A spillDirectory keeps the samples in a mapped temporary file there
+    // instead of direct memory, for reservoirs larger than physical memory.
+    public TrainingReservoir(int capacity, int channels, int blockWidth, int blockHeight, Random random,
+                             Path spillDirectory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Reservoir capacity must be positive: " + capacity);
+        }
+        if (channels < 1) {
+            throw new IllegalArgumentException("Reservoir needs at least one channel: " + channels);
+        }
+        if (blockWidth < 1 || blockHeight < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockWidth + "x" + blockHeight);
+        }
+        this.capacity = capacity;
+        this.channels = channels;
+        this.blockWidth = blockWidth;
+        this.blockHeight = blockHeight;
+        this.vectorSize = blockWidth * blockHeight;
+        this.random = random;
+        this.vectors = new PackedVectors[channels];
+        for (int c = 0; c < channels; c++) {
+            vectors[c] = spillDirectory == null
+                ? PackedVectors.allocate(capacity, vectorSize)
+                : PackedVectors.mapped(capacity, vectorSize, spillDirectory);
+        }
+        this.block = new byte[channels][vectorSize];
+    }
+
+    public void addImage(BufferedImage image) {
+        if (channels != RGB_CHANNELS) {
+            throw new IllegalArgumentException("RGB images need a 3-channel reservoir, this one has " + channels);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int blocksPerRow = width / blockWidth;
+        int[] rowPixels = new int[width * blockHeight];
+
+        for (int y = 0; y + blockHeight <= height; y += blockHeight) {
+            image.getRGB(0, y, width, blockHeight, rowPixels, 0, width);
+            for (int bx = 0; bx < blocksPerRow; bx++) {
+                int slot = blocksSeen < capacity ? (int) blocksSeen : (int) random.nextLong(blocksSeen + 1);
+                blocksSeen++;
+                if (slot < capacity) {
+                    storeBlock(rowPixels, width, bx * blockWidth, slot);
+                }
+            }
+        }
+        imagesSeen++;
+    }
+
+    // Samples co-located blocks from planes of equal size, one plane per
+    // channel (e.g. the Y plane alone, or the U and V planes together).
+    public void addPlanes(int width, int height, byte[]... planes) {
+        if (planes.length != channels) {
+            throw new IllegalArgumentException("Expected " + channels + " planes, got " + planes.length);
+        }
+        int blocksPerRow = width / blockWidth;
+
+        for (int y = 0; y + blockHeight <= height; y += blockHeight) {
+            for (int bx = 0; bx < blocksPerRow; bx++) {
+                int slot = blocksSeen < capacity ? (int) blocksSeen : (int) random.nextLong(blocksSeen + 1);
+                blocksSeen++;
+                if (slot < capacity) {
+                    storePlaneBlock(planes, width, bx * blockWidth, y, slot);
+                }
+            }
+        }
+        imagesSeen++;
+    }
+
+    private void storePlaneBlock(byte[][] planes, int width, int x, int y, int slot) {
+        for (int c = 0; c < channels; c++) {
+            for (int dy = 0; dy < blockHeight; dy++) {
+                System.arraycopy(planes[c], (y + dy) * width + x, block[c], dy * blockWidth, blockWidth);
+            }
+            vectors[c].put(slot, block[c]);
+        }
+    }
+
+    private void storeBlock(int[] rowPixels, int width, int x, int slot) {
+        int idx = 0;
+        for (int dy = 0; dy < blockHeight; dy++) {
+            for (int dx = 0; dx < blockWidth; dx++) {
+                int rgb = rowPixels[dy * width + x + dx];
+                block[0][idx] = (byte) (rgb >> 16);
+                block[1][idx] = (byte) (rgb >> 8);
+                block[2][idx] = (byte) rgb;
+                idx++;
+            }
+        }
+        for (int c = 0; c < RGB_CHANNELS; c++) {
+            vectors[c].put(slot, block[c]);
+        }
+    }
+
+    public int size() {
+        return (int) Math.min(blocksSeen, capacity);
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getVectorSize() {
+        return vectorSize;
+    }
+
+    public long getBlocksSeen() {
+        return blocksSeen;
+    }
+
+    public int getImagesSeen() {
+        return imagesSeen;
+    }
+
+    // Sampled vectors of one channel (0 = red, 1 = green, 2 = blue for
+    // images, otherwise the order the planes were given); only the first
+    // size() vectors are valid.
+    public PackedVectors getVectors(int channel) {
+        return vectors[channel];
+    }
+}
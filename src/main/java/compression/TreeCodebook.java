@@ -0,0 +1,82 @@
+package main.java.compression;
+
+// Binary tree-structured codebook. Nodes are stored in heap order (root at
+// index 1, children of n at 2n and 2n + 1) and the leaves, in order, form an
+// ordinary flat codebook, so tree-encoded indices decode like any other.
+public class TreeCodebook implements CodebookSearch {
+    private final float[] nodes;
+    private final int leaves;
+    private final int depth;
+    private final int dimension;
+
+    public TreeCodebook(double[][] nodes) {
+        this.leaves = nodes.length / 2;
+        if (leaves < 2 || Integer.bitCount(leaves) != 1 || nodes.length != 2 * leaves) {
+            throw new IllegalArgumentException("Tree codebook needs 2 * 2^k node slots, got " + nodes.length);
+        }
+        this.depth = Integer.numberOfTrailingZeros(leaves);
+        this.dimension = nodes[1].length;
+        this.nodes = new float[nodes.length * dimension];
+        for (int n = 1; n < nodes.length; n++) {
+            for (int j = 0; j < dimension; j++) {
+                this.nodes[n * dimension + j] = (float) nodes[n][j];
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return leaves;
+    }
+
+    @Override
+    public int dimension() {
+        return dimension;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    @Override
+    public int findNearest(float[] vector, int offset) {
+        int node = 1;
+        for (int level = 0; level < depth; level++) {
+            int left = node << 1;
+            float leftDist = distance(vector, offset, left);
+            float rightDist = distance(vector, offset, left + 1);
+            node = rightDist < leftDist ? left + 1 : left;
+        }
+        return node - leaves;
+    }
+
+    private float distance(float[] vector, int offset, int node) {
+        int base = node * dimension;
+        float dist = 0;
+        for (int j = 0; j < dimension; j++) {
+            float diff = vector[offset + j] - nodes[base + j];
+            dist += diff * diff;
+        }
+        return dist;
+    }
+
+    public double[][] getLeafCodebook() {
+        double[][] codebook = new double[leaves][dimension];
+        for (int i = 0; i < leaves; i++) {
+            for (int j = 0; j < dimension; j++) {
+                codebook[i][j] = nodes[(leaves + i) * dimension + j];
+            }
+        }
+        return codebook;
+    }
+
+    public double[][] getNodes() {
+        double[][] result = new double[2 * leaves][dimension];
+        for (int n = 1; n < 2 * leaves; n++) {
+            for (int j = 0; j < dimension; j++) {
+                result[n][j] = nodes[n * dimension + j];
+            }
+        }
+        return result;
+    }
+}
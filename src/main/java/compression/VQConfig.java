@@ -0,0 +1,208 @@
+package main.java.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+// Block geometry and codebook size, shared by training and encoding so the
+// codebooks always match the vectors they are searched with, plus the
+// encoder's flat-block and frame-reuse thresholds and the size and spill
+// directory of the training reservoir. Values come
+// from main/resources/config.properties on the classpath; a system property
+// with a "vq." prefix (e.g. -Dvq.block.width=4) overrides a single value.
+public final class VQConfig {
+    public static final String RESOURCE = "/main/resources/config.properties";
+    // Codebook vectors are stored with a one-byte dimension in .vq files.
+    public static final int MAX_VECTOR_SIZE = 64;
+    public static final int MAX_CODEBOOK_SIZE = 65536;
+
+    private static final int DEFAULT_BLOCK_WIDTH = 2;
+    private static final int DEFAULT_BLOCK_HEIGHT = 2;
+    private static final int DEFAULT_CODEBOOK_SIZE = 256;
+    private static final int DEFAULT_FLAT_THRESHOLD = 8;
+    private static final int DEFAULT_REUSE_THRESHOLD = 16;
+    private static final int DEFAULT_RESERVOIR_SIZE = 65536;
+
+    private static VQConfig defaults;
+
+    private final int blockWidth;
+    private final int blockHeight;
+    private final int codebookSize;
+    private final int flatThreshold;
+    private final boolean flatExact;
+    private final int reuseThreshold;
+    private final int reservoirSize;
+    private final Path reservoirSpillDirectory;
+
+    public VQConfig(int blockWidth, int blockHeight, int codebookSize) {
+        this(blockWidth, blockHeight, codebookSize, 0);
+    }
+
+    public VQConfig(int blockWidth, int blockHeight, int codebookSize, int flatThreshold) {
+        this(blockWidth, blockHeight, codebookSize, flatThreshold, 0);
+    }
+
+    public VQConfig(int blockWidth, int blockHeight, int codebookSize, int flatThreshold, int reuseThreshold) {
+        this(blockWidth, blockHeight, codebookSize, flatThreshold, false, reuseThreshold);
+    }
+
+    public VQConfig(int blockWidth, int blockHeight, int codebookSize, int flatThreshold, boolean flatExact,
+                    int reuseThreshold) {
+        this(blockWidth, blockHeight, codebookSize, flatThreshold, flatExact, reuseThreshold,
+            DEFAULT_RESERVOIR_SIZE, null);
+    }
+
+    // Blocks whose mean squared deviation from their own mean is at most
+    // flatThreshold skip the codebook search and take the codeword chosen
+    // for their mean; 0 turns this off. With flatExact they are coded by
+    // the mean itself as flat blocks, which take the indices above the
+    // codebook, so the codebook must leave room for 256 of them. In a frame
+    // sequence, a block whose mean squared difference from the pixels it
+    // was last coded for is at most reuseThreshold keeps its indices (see
+    // SequenceEncoder). Training samples up to reservoirSize blocks per
+    // channel, kept in mapped temporary files in reservoirSpillDirectory
+    // when it is not null, otherwise in direct memory.
+    public VQConfig(int blockWidth, int blockHeight, int codebookSize, int flatThreshold, boolean flatExact,
+                    int reuseThreshold, int reservoirSize, Path reservoirSpillDirectory) {
+        if (blockWidth < 1 || blockHeight < 1 || blockWidth * blockHeight > MAX_VECTOR_SIZE) {
+            throw new IllegalArgumentException("Block size must be positive and at most " + MAX_VECTOR_SIZE
+                + " pixels: " + blockWidth + "x" + blockHeight);
+        }
+        // Tree-structured codebooks split every node in two.
+        if (codebookSize < 2 || codebookSize > MAX_CODEBOOK_SIZE || Integer.bitCount(codebookSize) != 1) {
+            throw new IllegalArgumentException("Codebook size must be a power of two between 2 and "
+                + MAX_CODEBOOK_SIZE + ": " + codebookSize);
+        }
+        if (flatThreshold < 0 || reuseThreshold < 0) {
+            throw new IllegalArgumentException("Thresholds must not be negative: flat " + flatThreshold
+                + ", reuse " + reuseThreshold);
+        }
+        if (flatThreshold > 0 && flatExact && codebookSize + CompressedImage.FLAT_LEVELS > MAX_CODEBOOK_SIZE) {
+            throw new IllegalArgumentException("Flat blocks need a codebook of at most "
+                + (MAX_CODEBOOK_SIZE - CompressedImage.FLAT_LEVELS) + " codewords: " + codebookSize);
+        }
+        if (reservoirSize < 1) {
+            throw new IllegalArgumentException("Reservoir size must be positive: " + reservoirSize);
+        }
+        this.blockWidth = blockWidth;
+        this.blockHeight = blockHeight;
+        this.codebookSize = codebookSize;
+        this.flatThreshold = flatThreshold;
+        this.flatExact = flatExact;
+        this.reuseThreshold = reuseThreshold;
+        this.reservoirSize = reservoirSize;
+        this.reservoirSpillDirectory = reservoirSpillDirectory;
+    }
+
+    // Loaded once; a missing or unreadable resource falls back to 2x2 blocks,
+    // 256 codewords, a flat threshold of 8, a reuse threshold of 16 and a
+    // 65536-block reservoir in direct memory.
+    public static synchronized VQConfig load() {
+        if (defaults == null) {
+            Properties properties = new Properties();
+            try (InputStream in = VQConfig.class.getResourceAsStream(RESOURCE)) {
+                if (in != null) {
+                    properties.load(in);
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to read " + RESOURCE + ", using defaults: " + e.getMessage());
+            }
+            defaults = fromProperties(properties);
+        }
+        return defaults;
+    }
+
+    public static VQConfig fromProperties(Properties properties) {
+        return new VQConfig(
+            intValue(properties, "block.width", DEFAULT_BLOCK_WIDTH),
+            intValue(properties, "block.height", DEFAULT_BLOCK_HEIGHT),
+            intValue(properties, "codebook.size", DEFAULT_CODEBOOK_SIZE),
+            intValue(properties, "flat.threshold", DEFAULT_FLAT_THRESHOLD),
+            booleanValue(properties, "flat.exact", false),
+            intValue(properties, "reuse.threshold", DEFAULT_REUSE_THRESHOLD),
+            intValue(properties, "reservoir.size", DEFAULT_RESERVOIR_SIZE),
+            pathValue(properties, "reservoir.spill.dir"));
+    }
+
+    private static int intValue(Properties properties, String key, int defaultValue) {
+        String value = System.getProperty("vq." + key, properties.getProperty(key));
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+        }
+    }
+
+    private static boolean booleanValue(Properties properties, String key, boolean defaultValue) {
+        String value = System.getProperty("vq." + key, properties.getProperty(key));
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        if (!value.trim().equals("true") && !value.trim().equals("false")) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    private static Path pathValue(Properties properties, String key) {
+        String value = System.getProperty("vq." + key, properties.getProperty(key));
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return Paths.get(value.trim());
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+        }
+    }
+
+    public int getBlockWidth() {
+        return blockWidth;
+    }
+
+    public int getBlockHeight() {
+        return blockHeight;
+    }
+
+    public int getVectorSize() {
+        return blockWidth * blockHeight;
+    }
+
+    public int getCodebookSize() {
+        return codebookSize;
+    }
+
+    public int getFlatThreshold() {
+        return flatThreshold;
+    }
+
+    public boolean isFlatExact() {
+        return flatExact;
+    }
+
+    public int getReuseThreshold() {
+        return reuseThreshold;
+    }
+
+    public int getReservoirSize() {
+        return reservoirSize;
+    }
+
+    // null when the reservoir stays in direct memory.
+    public Path getReservoirSpillDirectory() {
+        return reservoirSpillDirectory;
+    }
+
+    @Override
+    public String toString() {
+        return blockWidth + "x" + blockHeight + " blocks, " + codebookSize + " codewords, "
+            + (flatThreshold == 0 ? "no flat blocks"
+                : "flat threshold " + flatThreshold + (flatExact ? " (exact means)" : ""));
+    }
+}
@@ -0,0 +1,81 @@
+package main.java.compression;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Distances to a whole vector of codewords per instruction. The codebook is
+// stored component-major (every codeword's first component, then every
+// second component, ...) and padded to a whole number of vectors with
+// infinite components, which are never nearest. Each lane performs the same
+// float operations in the same order as the scalar loops, so the selected
+// indices are identical. Only loaded through VectorSupport.
+final class VectorKernel implements DistanceKernel {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private final float[] components;
+    private final int size;
+    private final int stride;
+    private final int dimension;
+
+    VectorKernel(float[] codewords, int size, int dimension) {
+        this.size = size;
+        this.dimension = dimension;
+        this.stride = SPECIES.loopBound(size + SPECIES.length() - 1);
+        this.components = new float[stride * dimension];
+        Arrays.fill(components, Float.POSITIVE_INFINITY);
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < dimension; j++) {
+                components[j * stride + i] = codewords[i * dimension + j];
+            }
+        }
+    }
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    // Each lane keeps its own nearest codeword; a strict comparison keeps the
+    // earliest one on ties, and the final reduction picks the lowest index
+    // among the lanes holding the minimum.
+    @Override
+    public int findNearest(float[] vector, int offset) {
+        FloatVector best = FloatVector.broadcast(SPECIES, Float.MAX_VALUE);
+        FloatVector bestIndex = FloatVector.zero(SPECIES);
+        FloatVector index = FloatVector.zero(SPECIES).addIndex(1);
+        FloatVector step = FloatVector.broadcast(SPECIES, SPECIES.length());
+
+        for (int k = 0; k < stride; k += SPECIES.length()) {
+            FloatVector dist = distance(vector, offset, k);
+            VectorMask<Float> closer = dist.lt(best);
+            best = best.blend(dist, closer);
+            bestIndex = bestIndex.blend(index, closer);
+            index = index.add(step);
+        }
+
+        float min = best.reduceLanes(VectorOperators.MIN);
+        return (int) bestIndex.blend(Float.MAX_VALUE, best.eq(min).not()).reduceLanes(VectorOperators.MIN);
+    }
+
+    @Override
+    public void distances(float[] vector, int offset, float[] out) {
+        for (int k = 0; k < stride; k += SPECIES.length()) {
+            distance(vector, offset, k).intoArray(out, k, SPECIES.indexInRange(k, size));
+        }
+    }
+
+    private FloatVector distance(float[] vector, int offset, int k) {
+        FloatVector diff = FloatVector.broadcast(SPECIES, vector[offset])
+            .sub(FloatVector.fromArray(SPECIES, components, k));
+        FloatVector dist = diff.mul(diff);
+        for (int j = 1; j < dimension; j++) {
+            diff = FloatVector.broadcast(SPECIES, vector[offset + j])
+                .sub(FloatVector.fromArray(SPECIES, components, j * stride + k));
+            dist = dist.add(diff.mul(diff));
+        }
+        return dist;
+    }
+}
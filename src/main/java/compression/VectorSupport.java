@@ -0,0 +1,57 @@
+package main.java.compression;
+
+// Decides once whether the Vector API kernel can be used. It needs the
+// jdk.incubator.vector module in the boot layer (java --add-modules
+// jdk.incubator.vector) and can be switched off with -Dvq.simd=false.
+// VectorKernel is only touched through reflection, so the scalar path keeps
+// working on JVMs started without the module.
+public final class VectorSupport {
+    private static final String MODULE = "jdk.incubator.vector";
+    private static final String KERNEL_CLASS = VectorSupport.class.getPackageName() + ".VectorKernel";
+
+    private static volatile boolean available = Boolean.parseBoolean(System.getProperty("vq.simd", "true"))
+        && ModuleLayer.boot().findModule(MODULE).isPresent();
+
+    private VectorSupport() {
+    }
+
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    public static String describe() {
+        if (!isAvailable()) {
+            return "scalar (run with --add-modules " + MODULE + " for SIMD)";
+        }
+        try {
+            int lanes = (int) Class.forName(KERNEL_CLASS).getDeclaredMethod("lanes").invoke(null);
+            return "SIMD, " + lanes + " float lanes";
+        } catch (ReflectiveOperationException | LinkageError e) {
+            disable(e);
+            return "scalar";
+        }
+    }
+
+    // The vectorized kernel for a row-major codebook, or null when it is
+    // unavailable.
+    static DistanceKernel create(float[] codewords, int size, int dimension) {
+        if (!isAvailable()) {
+            return null;
+        }
+        try {
+            return (DistanceKernel) Class.forName(KERNEL_CLASS)
+                .getDeclaredConstructor(float[].class, int.class, int.class)
+                .newInstance(codewords, size, dimension);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            disable(e);
+            return null;
+        }
+    }
+
+    private static void disable(Throwable cause) {
+        if (available) {
+            available = false;
+            System.err.println("Vector API kernel unavailable, using scalar search: " + cause);
+        }
+    }
+}
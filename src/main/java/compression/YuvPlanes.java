@@ -0,0 +1,67 @@
+package main.java.compression;
+
+// Planar YUV 4:2:0 image: a full-resolution luma plane and two chroma
+// planes at half resolution in each direction, one unsigned byte per
+// sample with U and V offset by 128.
+public class YuvPlanes {
+    public static final String[] CHANNELS = {"y", "u", "v"};
+
+    private final int width;
+    private final int height;
+    private final byte[][] planes;
+
+    public YuvPlanes(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int chromaSize = chromaWidth(width) * chromaHeight(height);
+        this.planes = new byte[][] {new byte[width * height], new byte[chromaSize], new byte[chromaSize]};
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChromaWidth() {
+        return chromaWidth(width);
+    }
+
+    public int getChromaHeight() {
+        return chromaHeight(height);
+    }
+
+    public int getPlaneWidth(int plane) {
+        return plane == 0 ? width : getChromaWidth();
+    }
+
+    public int getPlaneHeight(int plane) {
+        return plane == 0 ? height : getChromaHeight();
+    }
+
+    public byte[] getPlane(int plane) {
+        return planes[plane];
+    }
+
+    public byte[] getY() {
+        return planes[0];
+    }
+
+    public byte[] getU() {
+        return planes[1];
+    }
+
+    public byte[] getV() {
+        return planes[2];
+    }
+
+    public static int chromaWidth(int width) {
+        return (width + 1) / 2;
+    }
+
+    public static int chromaHeight(int height) {
+        return (height + 1) / 2;
+    }
+}
@@ -0,0 +1,356 @@
+package main.java.compression.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import main.java.compression.CompressedImage;
+import main.java.compression.ImageCompressor;
+
+// Streams images through decode -> encode -> write -> verify stages joined by
+// bounded queues, so only a handful of images are in memory at any time and
+// file decoding overlaps encoding and output. Decode and encode run on worker
+// pools, writes on a single thread, and verification (read back, decode,
+// metrics) on the calling thread so its output stays in one place.
+public class BatchPipeline {
+    private static final Item END = new Item(null);
+    private static final long POLL_MILLIS = 100;
+
+    private final ImageLoader loader;
+    private final ImageCompressor compressor;
+    private final VQFileWriter writer;
+    private final VQFileReader reader;
+    private final CompressionMetrics metrics;
+    private final PipelineRecorder recorder;
+    private final int decoders;
+    private final int encoders;
+    private final int queueCapacity;
+
+    public BatchPipeline(ImageLoader loader, ImageCompressor compressor, VQFileWriter writer, VQFileReader reader,
+                         CompressionMetrics metrics, PipelineRecorder recorder,
+                         int decoders, int encoders, int queueCapacity) {
+        if (decoders < 1 || encoders < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Pipeline needs at least one decoder, encoder and queue slot: "
+                + decoders + ", " + encoders + ", " + queueCapacity);
+        }
+        this.loader = loader;
+        this.compressor = compressor;
+        this.writer = writer;
+        this.reader = reader;
+        this.metrics = metrics;
+        this.recorder = recorder;
+        this.decoders = decoders;
+        this.encoders = encoders;
+        this.queueCapacity = queueCapacity;
+    }
+
+    // Decodes the images in parallel and hands each one to the consumer on
+    // the calling thread, in completion order.
+    public void forEachImage(List<Job> jobs, ImageConsumer consumer) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(decoders, threadFactory());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        BlockingQueue<Item> decoded = new ArrayBlockingQueue<>(queueCapacity);
+
+        try {
+            startDecoders(executor, jobs, decoded, failure);
+            Item item;
+            while ((item = next(decoded, failure)) != END) {
+                consumer.accept(item.job, item.original);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Encodes every image with every variant, writes the .vq files to
+    // outputDir/<variant>/<category>_<index>.vq, then reads each file back
+    // and reports its quality.
+    public List<Result> compress(List<Job> jobs, List<Variant> variants, Path outputDir) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(decoders + encoders + 1, threadFactory());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        BlockingQueue<Item> decoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> encoded = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> written = new ArrayBlockingQueue<>(queueCapacity);
+        List<Result> results = new ArrayList<>();
+
+        try {
+            startDecoders(executor, jobs, decoded, failure);
+            startStage(executor, encoders, decoded, encoded, failure, item -> encode(item, variants));
+            startStage(executor, 1, encoded, written, failure, item -> write(item, variants, outputDir));
+
+            Item item;
+            while ((item = next(written, failure)) != END) {
+                verify(item, variants, results);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private void encode(Item item, List<Variant> variants) {
+        item.encoded = new CompressedImage[variants.size()];
+        item.encodeNanos = new long[variants.size()];
+        for (int v = 0; v < variants.size(); v++) {
+            Variant variant = variants.get(v);
+            String name = variant.name + "/" + item.job.getName();
+            recorder.recordImageSize(name, item.original.getWidth(), item.original.getHeight());
+
+            PipelineRecorder.Timer timer = recorder.start(PipelineStage.ENCODE, name);
+            item.encoded[v] = variant.encoder.encode(item.original, name);
+            item.encodeNanos[v] = timer.items(countBlocks(item.encoded[v])).stop();
+        }
+    }
+
+    private void write(Item item, List<Variant> variants, Path outputDir) throws IOException {
+        item.paths = new Path[variants.size()];
+        item.bytes = new long[variants.size()];
+        for (int v = 0; v < variants.size(); v++) {
+            String name = variants.get(v).name + "/" + item.job.getName();
+            item.paths[v] = outputDir.resolve(variants.get(v).name).resolve(item.job.getName() + ".vq");
+
+            PipelineRecorder.Timer timer = recorder.start(PipelineStage.WRITE, name);
+            item.bytes[v] = writer.write(item.encoded[v], item.paths[v]);
+            timer.items(1).bytes(item.bytes[v]).stop();
+        }
+        item.encoded = null;
+    }
+
+    private void verify(Item item, List<Variant> variants, List<Result> results) throws IOException {
+        for (int v = 0; v < variants.size(); v++) {
+            String name = variants.get(v).name + "/" + item.job.getName();
+
+            PipelineRecorder.Timer decodeTimer = recorder.start(PipelineStage.DECODE, name);
+            CompressedImage compressed = reader.read(item.paths[v]);
+            BufferedImage decoded = compressor.decode(compressed);
+            long blocks = countBlocks(compressed);
+            decodeTimer.items(blocks).stop();
+            long flatBlocks = compressed.getFlatBlockCount();
+            recorder.recordFlatBlocks(name, flatBlocks);
+
+            System.out.printf("\nMetrics for %s %s image %d:\n",
+                variants.get(v).name.toUpperCase(), item.job.getCategory(), item.job.getIndex() + 1);
+            System.out.printf("Flat blocks: %.1f%%%n", blocks == 0 ? 0 : 100.0 * flatBlocks / blocks);
+            PipelineRecorder.Timer metricsTimer = recorder.start(PipelineStage.METRICS, name);
+            CompressionMetrics.Quality quality = metrics.calculateAndDisplayMetrics(item.original, decoded, item.bytes[v]);
+            metricsTimer.items(1).stop();
+            recorder.recordQuality(name, quality.getPsnr(), quality.getSsim());
+
+            results.add(new Result(item.job, variants.get(v).name, item.encodeNanos[v], item.bytes[v],
+                quality.getPsnr(), quality.getSsim()));
+        }
+    }
+
+    private void startDecoders(ExecutorService executor, List<Job> jobs, BlockingQueue<Item> output,
+                               AtomicReference<Throwable> failure) {
+        AtomicInteger nextJob = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger(decoders);
+        for (int t = 0; t < decoders; t++) {
+            executor.execute(() -> {
+                try {
+                    int index;
+                    while ((index = nextJob.getAndIncrement()) < jobs.size()) {
+                        Item item = new Item(jobs.get(index));
+                        item.original = loader.loadImage(item.job.getFile());
+                        output.put(item);
+                    }
+                    if (running.decrementAndGet() == 0) {
+                        output.put(END);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception | Error e) {
+                    fail(executor, failure, e);
+                }
+            });
+        }
+    }
+
+    // Each worker forwards items until it sees END, which it puts back for
+    // its siblings; the last worker out passes END downstream.
+    private void startStage(ExecutorService executor, int threads, BlockingQueue<Item> input,
+                            BlockingQueue<Item> output, AtomicReference<Throwable> failure, StageBody body) {
+        AtomicInteger running = new AtomicInteger(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                try {
+                    Item item;
+                    while ((item = input.take()) != END) {
+                        body.process(item);
+                        output.put(item);
+                    }
+                    input.put(END);
+                    if (running.decrementAndGet() == 0) {
+                        output.put(END);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception | Error e) {
+                    fail(executor, failure, e);
+                }
+            });
+        }
+    }
+
+    private static void fail(ExecutorService executor, AtomicReference<Throwable> failure, Throwable e) {
+        failure.compareAndSet(null, e);
+        executor.shutdownNow();
+    }
+
+    private static Item next(BlockingQueue<Item> queue, AtomicReference<Throwable> failure) throws IOException {
+        try {
+            while (true) {
+                Item item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    return item;
+                }
+                Throwable cause = failure.get();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause != null) {
+                    throw new IOException("Pipeline stage failed: " + cause.getMessage(), cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the pipeline", e);
+        }
+    }
+
+    private static long countBlocks(CompressedImage image) {
+        long blocks = 0;
+        for (int c = 0; c < image.getChannels().length; c++) {
+            blocks += image.getIndices(c).length;
+        }
+        return blocks;
+    }
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, "vq-pipeline-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public interface ImageConsumer {
+        void accept(Job job, BufferedImage image) throws IOException;
+    }
+
+    public interface Encoder {
+        CompressedImage encode(BufferedImage image, String name);
+    }
+
+    private interface StageBody {
+        void process(Item item) throws IOException;
+    }
+
+    public static class Job {
+        private final String category;
+        private final int index;
+        private final File file;
+
+        public Job(String category, int index, File file) {
+            this.category = category;
+            this.index = index;
+            this.file = file;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getName() {
+            return category + "_" + index;
+        }
+    }
+
+    public static class Variant {
+        private final String name;
+        private final Encoder encoder;
+
+        public Variant(String name, Encoder encoder) {
+            this.name = name;
+            this.encoder = encoder;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static class Result {
+        private final Job job;
+        private final String variant;
+        private final long encodeNanos;
+        private final long bytes;
+        private final double psnr;
+        private final double ssim;
+
+        Result(Job job, String variant, long encodeNanos, long bytes, double psnr, double ssim) {
+            this.job = job;
+            this.variant = variant;
+            this.encodeNanos = encodeNanos;
+            this.bytes = bytes;
+            this.psnr = psnr;
+            this.ssim = ssim;
+        }
+
+        public Job getJob() {
+            return job;
+        }
+
+        public String getVariant() {
+            return variant;
+        }
+
+        public long getEncodeNanos() {
+            return encodeNanos;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getPsnr() {
+            return psnr;
+        }
+
+        public double getSsim() {
+            return ssim;
+        }
+    }
+
+    private static class Item {
+        final Job job;
+        BufferedImage original;
+        CompressedImage[] encoded;
+        long[] encodeNanos;
+        Path[] paths;
+        long[] bytes;
+
+        Item(Job job) {
+            this.job = job;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package main.java.compression.utils;
+
+import java.awt.image.BufferedImage;
+
+// Cheap fingerprint of what an image's blocks look like, used to route an
+// image to the codebook trained on similar images. Every other 4x4 window in
+// each direction falls into a bin by its mean luma, its luma variance and
+// its dominant chroma; the signature is the share of windows per bin, and
+// a category's signature is the average over its training images.
+public class BlockSignature {
+    private static final int WINDOW = 4;
+    private static final int WINDOW_STRIDE = 2;
+    private static final int LUMA_BINS = 8;
+    private static final int[] ACTIVITY_LIMITS = {4, 32, 256};
+    // Neutral, warm (red dominates), blue, green
+    private static final int CHROMA_BINS = 4;
+    private static final int NEUTRAL_CHROMA = 6;
+
+    public static final int BINS = LUMA_BINS * (ACTIVITY_LIMITS.length + 1) * CHROMA_BINS;
+
+    private final double[] sums = new double[BINS];
+    private int images;
+
+    public void addImage(BufferedImage image) {
+        double[] histogram = histogram(image);
+        for (int i = 0; i < BINS; i++) {
+            sums[i] += histogram[i];
+        }
+        images++;
+    }
+
+    public double[] get() {
+        double[] signature = new double[BINS];
+        for (int i = 0; i < BINS; i++) {
+            signature[i] = images == 0 ? 0 : sums[i] / images;
+        }
+        return signature;
+    }
+
+    public int getImages() {
+        return images;
+    }
+
+    public static double[] histogram(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = PixelAccess.pixels(image);
+        double[] histogram = new double[BINS];
+        int windows = 0;
+
+        for (int top = 0; top + WINDOW <= height; top += WINDOW * WINDOW_STRIDE) {
+            for (int left = 0; left + WINDOW <= width; left += WINDOW * WINDOW_STRIDE) {
+                int sumLuma = 0;
+                int sumLumaSquared = 0;
+                int sumRed = 0;
+                int sumBlue = 0;
+                for (int y = top; y < top + WINDOW; y++) {
+                    for (int i = y * width + left; i < y * width + left + WINDOW; i++) {
+                        int rgb = pixels[i];
+                        int red = (rgb >> 16) & 0xFF;
+                        int green = (rgb >> 8) & 0xFF;
+                        int blue = rgb & 0xFF;
+                        int luma = (77 * red + 150 * green + 29 * blue + 128) >> 8;
+                        sumLuma += luma;
+                        sumLumaSquared += luma * luma;
+                        sumRed += red;
+                        sumBlue += blue;
+                    }
+                }
+
+                int n = WINDOW * WINDOW;
+                int mean = sumLuma / n;
+                int variance = sumLumaSquared / n - mean * mean;
+                int activity = 0;
+                while (activity < ACTIVITY_LIMITS.length && variance >= ACTIVITY_LIMITS[activity]) {
+                    activity++;
+                }
+                int redChroma = (sumRed - sumLuma) / n;
+                int blueChroma = (sumBlue - sumLuma) / n;
+                int chroma;
+                if (Math.abs(redChroma) < NEUTRAL_CHROMA && Math.abs(blueChroma) < NEUTRAL_CHROMA) {
+                    chroma = 0;
+                } else if (Math.max(redChroma, blueChroma) < 0) {
+                    chroma = 3;
+                } else {
+                    chroma = redChroma >= blueChroma ? 1 : 2;
+                }
+
+                int luma = mean * LUMA_BINS / 256;
+                histogram[(luma * (ACTIVITY_LIMITS.length + 1) + activity) * CHROMA_BINS + chroma]++;
+                windows++;
+            }
+        }
+
+        for (int i = 0; i < BINS; i++) {
+            histogram[i] = windows == 0 ? 0 : histogram[i] / windows;
+        }
+        return histogram;
+    }
+
+    // Share of windows that would have to move to another bin to turn one
+    // histogram into the other, from 0 (identical) to 1.
+    public static double distance(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < BINS; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum / 2;
+    }
+}
@@ -0,0 +1,225 @@
+package main.java.compression.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import main.java.compression.FlatCodebook;
+import main.java.compression.VQConfig;
+
+// RGB codebooks trained per image category, one CodebookStore file per
+// category in the registry directory. Only the categories' keys and
+// BlockSignatures stay in memory; codebooks are loaded on first use and at
+// most `capacity` sets are kept, the least recently used going first, so
+// the number of categories is bounded by the disk rather than the heap.
+// route() picks the category whose codebooks suit an image best; the
+// searches it builds stay cached with the codebooks they were built from.
+public class CodebookRegistry {
+    // Stored next to the codebooks as BINS one-dimensional codewords.
+    private static final String SIGNATURE = "signature";
+    private static final String[] CHANNELS = {"red", "green", "blue"};
+    private static final int SHORTLIST = 2;
+    private static final int SAMPLE_STRIDE = 8;
+
+    private final Path directory;
+    private final int capacity;
+    private final VQConfig config;
+    private final Map<String, byte[]> keys = new LinkedHashMap<>();
+    private final Map<String, double[]> signatures = new LinkedHashMap<>();
+    private final Map<String, Entry> cache;
+    private long loads;
+    private long evictions;
+
+    public CodebookRegistry(Path directory, int capacity) {
+        this(directory, capacity, VQConfig.load());
+    }
+
+    // config gives the block size the codebooks were trained for.
+    public CodebookRegistry(Path directory, int capacity, VQConfig config) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Registry capacity must be positive: " + capacity);
+        }
+        this.directory = directory;
+        this.capacity = capacity;
+        this.config = config;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > CodebookRegistry.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Registers a category stored under this key by an earlier add(),
+    // reading only its signature. False if it is missing or was trained on
+    // other images or parameters, i.e. needs training.
+    public synchronized boolean register(String category, byte[] key) throws IOException {
+        double[][] signature = store(category).load(key, SIGNATURE);
+        if (signature == null || signature.length != BlockSignature.BINS) {
+            return false;
+        }
+        double[] bins = new double[BlockSignature.BINS];
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] = signature[i][0];
+        }
+        keys.put(category, key);
+        signatures.put(category, bins);
+        cache.remove(category);
+        return true;
+    }
+
+    public synchronized void add(String category, byte[] key, double[] signature,
+                                 Map<String, double[][]> codebooks) throws IOException {
+        if (signature.length != BlockSignature.BINS) {
+            throw new IllegalArgumentException("Signature has " + signature.length + " bins, expected "
+                + BlockSignature.BINS);
+        }
+        double[][] stored = new double[signature.length][];
+        for (int i = 0; i < signature.length; i++) {
+            stored[i] = new double[] {signature[i]};
+        }
+        Map<String, double[][]> entries = new HashMap<>(codebooks);
+        entries.put(SIGNATURE, stored);
+        store(category).save(key, entries);
+
+        keys.put(category, key);
+        signatures.put(category, signature.clone());
+        cache.put(category, new Entry(new HashMap<>(codebooks)));
+    }
+
+    public synchronized Map<String, double[][]> get(String category) throws IOException {
+        return entry(category).codebooks;
+    }
+
+    private Entry entry(String category) throws IOException {
+        Entry entry = cache.get(category);
+        if (entry != null) {
+            return entry;
+        }
+        byte[] key = keys.get(category);
+        if (key == null) {
+            throw new IllegalArgumentException("Unknown codebook category: " + category);
+        }
+        Map<String, double[][]> codebooks = store(category).load(key);
+        if (codebooks == null) {
+            throw new IOException("Codebooks of category '" + category + "' are missing or stale in " + directory);
+        }
+        codebooks.remove(SIGNATURE);
+        loads++;
+        entry = new Entry(codebooks);
+        cache.put(category, entry);
+        return entry;
+    }
+
+    // Signatures shortlist the closest categories; among those, the one
+    // whose codebooks quantize a sparse sample of the image's blocks with
+    // the least error wins. Only shortlisted codebooks are loaded. Ties go
+    // to the first registered category.
+    public synchronized String route(BufferedImage image) throws IOException {
+        if (signatures.isEmpty()) {
+            throw new IllegalStateException("No codebook categories registered in " + directory);
+        }
+        double[] histogram = BlockSignature.histogram(image);
+        List<String> shortlist = new ArrayList<>(signatures.keySet());
+        shortlist.sort(Comparator.comparingDouble(category ->
+            BlockSignature.distance(histogram, signatures.get(category))));
+        shortlist = shortlist.subList(0, Math.min(SHORTLIST, shortlist.size()));
+        if (shortlist.size() == 1) {
+            return shortlist.get(0);
+        }
+
+        int[] pixels = PixelAccess.pixels(image);
+        String best = null;
+        double bestError = Double.MAX_VALUE;
+        for (String category : shortlist) {
+            double error = sampleError(pixels, image.getWidth(), image.getHeight(), entry(category).searches());
+            if (error < bestError) {
+                bestError = error;
+                best = category;
+            }
+        }
+        return best;
+    }
+
+    // Squared error over every SAMPLE_STRIDE-th block in each direction.
+    private double sampleError(int[] pixels, int width, int height, FlatCodebook[] searches) {
+        int blockWidth = config.getBlockWidth();
+        int blockHeight = config.getBlockHeight();
+        float[][] vectors = new float[CHANNELS.length][blockWidth * blockHeight];
+        double error = 0;
+
+        for (int y = 0; y + blockHeight <= height; y += blockHeight * SAMPLE_STRIDE) {
+            for (int x = 0; x + blockWidth <= width; x += blockWidth * SAMPLE_STRIDE) {
+                int idx = 0;
+                for (int dy = 0; dy < blockHeight; dy++) {
+                    for (int dx = 0; dx < blockWidth; dx++) {
+                        int rgb = pixels[(y + dy) * width + x + dx];
+                        vectors[0][idx] = (rgb >> 16) & 0xFF;
+                        vectors[1][idx] = (rgb >> 8) & 0xFF;
+                        vectors[2][idx] = rgb & 0xFF;
+                        idx++;
+                    }
+                }
+                for (int c = 0; c < CHANNELS.length; c++) {
+                    int nearest = searches[c].findNearest(vectors[c], 0);
+                    for (int j = 0; j < idx; j++) {
+                        double diff = vectors[c][j] - searches[c].get(nearest, j);
+                        error += diff * diff;
+                    }
+                }
+            }
+        }
+        return error;
+    }
+
+    public synchronized List<String> getCategories() {
+        return new ArrayList<>(keys.keySet());
+    }
+
+    public synchronized int getCachedCount() {
+        return cache.size();
+    }
+
+    // Codebook sets read from disk, i.e. cache misses.
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private CodebookStore store(String category) {
+        return new CodebookStore(directory.resolve(category + ".bin"));
+    }
+
+    // A cached codebook set and, once route() has needed them, its searches.
+    private static class Entry {
+        private final Map<String, double[][]> codebooks;
+        private FlatCodebook[] searches;
+
+        Entry(Map<String, double[][]> codebooks) {
+            this.codebooks = codebooks;
+        }
+
+        FlatCodebook[] searches() {
+            if (searches == null) {
+                searches = new FlatCodebook[CHANNELS.length];
+                for (int c = 0; c < CHANNELS.length; c++) {
+                    searches[c] = new FlatCodebook(codebooks.get(CHANNELS[c]));
+                }
+            }
+            return searches;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package main.java.compression.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+public class CodebookStore {
+    private static final int MAGIC = 0x56514342; // "VQCB"
+    private static final short VERSION = 1;
+    private static final int KEY_LENGTH = 32;
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+
+    private final Path storePath;
+
+    public CodebookStore(Path storePath) {
+        this.storePath = storePath;
+    }
+
+    public byte[] computeKey(List<File> trainingFiles, String parameterSignature) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(parameterSignature.getBytes(StandardCharsets.UTF_8));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        for (File file : trainingFiles) {
+            digest.update(file.getName().getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+
+        return digest.digest();
+    }
+
+    public Map<String, double[][]> load(byte[] key) throws IOException {
+        return read(key, null);
+    }
+
+    // Reads a single codebook, skipping over the others without touching
+    // their pages; null if the store or the entry is missing or stale.
+    public double[][] load(byte[] key, String name) throws IOException {
+        Map<String, double[][]> codebooks = read(key, Objects.requireNonNull(name));
+        return codebooks == null ? null : codebooks.get(name);
+    }
+
+    // only, if not null, names the one entry to read.
+    private Map<String, double[][]> read(byte[] key, String only) throws IOException {
+        if (!Files.exists(storePath)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(storePath, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+                return null;
+            }
+
+            byte[] storedKey = new byte[KEY_LENGTH];
+            buffer.get(storedKey);
+            if (!Arrays.equals(storedKey, key)) {
+                return null;
+            }
+
+            Map<String, double[][]> codebooks = new HashMap<>();
+            int channelCount = buffer.get();
+            for (int c = 0; c < channelCount; c++) {
+                byte[] name = new byte[buffer.get() & 0xFF];
+                buffer.get(name);
+                int codebookSize = buffer.getInt();
+                int vectorSize = buffer.get();
+                String entry = new String(name, StandardCharsets.UTF_8);
+                if (only != null && !only.equals(entry)) {
+                    buffer.position(buffer.position() + codebookSize * vectorSize * Double.BYTES);
+                    continue;
+                }
+
+                double[][] codebook = new double[codebookSize][vectorSize];
+                for (double[] codeword : codebook) {
+                    for (int i = 0; i < vectorSize; i++) {
+                        codeword[i] = buffer.getDouble();
+                    }
+                }
+                codebooks.put(entry, codebook);
+            }
+            return codebooks;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public void save(byte[] key, Map<String, double[][]> codebooks) throws IOException {
+        int size = 4 + 2 + KEY_LENGTH + 1;
+        for (Map.Entry<String, double[][]> entry : codebooks.entrySet()) {
+            double[][] codebook = entry.getValue();
+            size += 1 + entry.getKey().getBytes(StandardCharsets.UTF_8).length + 4 + 1
+                + codebook.length * codebook[0].length * Double.BYTES;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.put(key);
+        buffer.put((byte) codebooks.size());
+        for (Map.Entry<String, double[][]> entry : codebooks.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            double[][] codebook = entry.getValue();
+            buffer.put((byte) name.length);
+            buffer.put(name);
+            buffer.putInt(codebook.length);
+            buffer.put((byte) codebook[0].length);
+            for (double[] codeword : codebook) {
+                for (double value : codeword) {
+                    buffer.putDouble(value);
+                }
+            }
+        }
+        buffer.flip();
+
+        Path parent = storePath.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tempPath = Files.createTempFile(parent, "codebooks", ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(tempPath, storePath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static String toHex(byte[] key) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : key) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -1,54 +1,219 @@
 package main.java.compression.utils;
 
 import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
 
+// Quality of a decoded image against its original, measured in one pass
+// over the raw pixel arrays. The image is cut into 8x8 windows; each window
+// adds its squared error per channel and its SSIM on luma, so MSE, PSNR and
+// SSIM come out of the same loop. Rows of windows are spread over a
+// ForkJoinPool, and the per-row sums are added up in row order so the
+// result does not depend on the parallelism.
 public class CompressionMetrics {
-    
-    public void calculateAndDisplayMetrics(BufferedImage original, BufferedImage compressed) {
-        double mse = calculateMSE(original, compressed);
-        double psnr = calculatePSNR(mse);
-        double compressionRatio = calculateCompressionRatio(original, compressed);
-
-        System.out.println("Mean Square Error (MSE): " + String.format("%.2f", mse));
-        System.out.println("Peak Signal-to-Noise Ratio (PSNR): " + String.format("%.2f", psnr) + " dB");
+    private static final int WINDOW = 8;
+    private static final int WINDOW_ROWS_PER_TASK = 4;
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+    private static final int CHANNELS = 3;
+
+    // Per window row: squared error of red, green and blue, the SSIM of each
+    // window weighted by its pixel count, and the pixel count.
+    private static final int ROW_STATS = 5;
+
+    private final ForkJoinPool pool;
+    private final int sampleStride;
+
+    public CompressionMetrics() {
+        this(1);
+    }
+
+    public CompressionMetrics(int parallelism) {
+        this(parallelism, 1);
+    }
+
+    // A sampleStride above 1 measures only one window in sampleStride,
+    // shifted by one window on every row so the samples spread over the
+    // whole image; cheap enough to monitor every image of a large batch.
+    public CompressionMetrics(int parallelism, int sampleStride) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        if (sampleStride < 1) {
+            throw new IllegalArgumentException("Sample stride must be at least 1: " + sampleStride);
+        }
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.sampleStride = sampleStride;
+    }
+
+    public Quality calculateAndDisplayMetrics(BufferedImage original, BufferedImage compressed, long compressedBytes) {
+        Quality quality = measure(original, compressed);
+        double compressionRatio = calculateCompressionRatio(original, compressedBytes);
+        double bitsPerPixel = calculateBitsPerPixel(original, compressedBytes);
+
+        System.out.println("Mean Square Error (MSE): " + String.format("%.2f", quality.getMse()));
+        System.out.println("Peak Signal-to-Noise Ratio (PSNR): " + String.format("%.2f", quality.getPsnr()) + " dB");
+        System.out.printf("Per-channel PSNR (R/G/B): %.2f / %.2f / %.2f dB%n",
+            quality.getChannelPsnr(0), quality.getChannelPsnr(1), quality.getChannelPsnr(2));
+        System.out.println("SSIM (luma, 8x8 windows): " + String.format("%.4f", quality.getSsim()));
+        if (quality.getSampledFraction() < 1) {
+            System.out.printf("Quality measured on %.0f%% of the pixels%n", 100 * quality.getSampledFraction());
+        }
         System.out.println("Compression Ratio: " + String.format("%.2f", compressionRatio) + ":1");
+        System.out.println("Bits per Pixel: " + String.format("%.3f", bitsPerPixel));
+        return quality;
+    }
+
+    public double calculatePSNR(BufferedImage original, BufferedImage compressed) {
+        return measure(original, compressed).getPsnr();
     }
 
-    private double calculateMSE(BufferedImage original, BufferedImage compressed) {
+    public double calculateBitsPerPixel(BufferedImage original, long compressedBytes) {
+        return compressedBytes * 8.0 / ((long) original.getWidth() * original.getHeight());
+    }
+
+    public Quality measure(BufferedImage original, BufferedImage compressed) {
         int width = original.getWidth();
         int height = original.getHeight();
-        double mse = 0.0;
-        
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb1 = original.getRGB(x, y);
-                int rgb2 = compressed.getRGB(x, y);
-                
-                int r1 = (rgb1 >> 16) & 0xFF;
-                int g1 = (rgb1 >> 8) & 0xFF;
-                int b1 = rgb1 & 0xFF;
-                
-                int r2 = (rgb2 >> 16) & 0xFF;
-                int g2 = (rgb2 >> 8) & 0xFF;
-                int b2 = rgb2 & 0xFF;
-                
-                mse += Math.pow(r1 - r2, 2) + Math.pow(g1 - g2, 2) + Math.pow(b1 - b2, 2);
+        if (compressed.getWidth() != width || compressed.getHeight() != height) {
+            throw new IllegalArgumentException("Image sizes differ: " + width + "x" + height + " and "
+                + compressed.getWidth() + "x" + compressed.getHeight());
+        }
+        int[] originalPixels = PixelAccess.pixels(original);
+        int[] compressedPixels = PixelAccess.pixels(compressed);
+
+        int windowRows = (height + WINDOW - 1) / WINDOW;
+        double[][] rowStats = new double[windowRows][ROW_STATS];
+        ParallelRange.forEach(pool, windowRows, WINDOW_ROWS_PER_TASK, (fromRow, toRow) -> {
+            for (int row = fromRow; row < toRow; row++) {
+                measureRow(originalPixels, compressedPixels, width, height, row, rowStats[row]);
+            }
+        });
+
+        double[] total = new double[ROW_STATS];
+        for (double[] stats : rowStats) {
+            for (int i = 0; i < ROW_STATS; i++) {
+                total[i] += stats[i];
+            }
+        }
+        double pixels = total[4];
+        double[] channelMse = new double[CHANNELS];
+        for (int c = 0; c < channelMse.length; c++) {
+            channelMse[c] = pixels == 0 ? 0 : total[c] / pixels;
+        }
+        double mse = pixels == 0 ? 0 : (total[0] + total[1] + total[2]) / (3 * pixels);
+        double ssim = pixels == 0 ? 1 : total[3] / pixels;
+        return new Quality(mse, channelMse, ssim, pixels / ((double) width * height));
+    }
+
+    private void measureRow(int[] original, int[] compressed, int width, int height, int row, double[] stats) {
+        int top = row * WINDOW;
+        int bottom = Math.min(top + WINDOW, height);
+        int windowCols = (width + WINDOW - 1) / WINDOW;
+        long redError = 0;
+        long greenError = 0;
+        long blueError = 0;
+        double ssimSum = 0;
+        long measured = 0;
+
+        for (int col = row % sampleStride; col < windowCols; col += sampleStride) {
+            int left = col * WINDOW;
+            int right = Math.min(left + WINDOW, width);
+            long sumX = 0;
+            long sumY = 0;
+            long sumXX = 0;
+            long sumYY = 0;
+            long sumXY = 0;
+
+            for (int y = top; y < bottom; y++) {
+                for (int i = y * width + left, end = y * width + right; i < end; i++) {
+                    int a = original[i];
+                    int b = compressed[i];
+                    int ar = (a >> 16) & 0xFF;
+                    int ag = (a >> 8) & 0xFF;
+                    int ab = a & 0xFF;
+                    int br = (b >> 16) & 0xFF;
+                    int bg = (b >> 8) & 0xFF;
+                    int bb = b & 0xFF;
+                    redError += (ar - br) * (ar - br);
+                    greenError += (ag - bg) * (ag - bg);
+                    blueError += (ab - bb) * (ab - bb);
+
+                    int lumaX = (77 * ar + 150 * ag + 29 * ab + 128) >> 8;
+                    int lumaY = (77 * br + 150 * bg + 29 * bb + 128) >> 8;
+                    sumX += lumaX;
+                    sumY += lumaY;
+                    sumXX += lumaX * lumaX;
+                    sumYY += lumaY * lumaY;
+                    sumXY += lumaX * lumaY;
+                }
             }
+
+            int n = (bottom - top) * (right - left);
+            double meanX = (double) sumX / n;
+            double meanY = (double) sumY / n;
+            double varianceX = (double) sumXX / n - meanX * meanX;
+            double varianceY = (double) sumYY / n - meanY * meanY;
+            double covariance = (double) sumXY / n - meanX * meanY;
+            double ssim = (2 * meanX * meanY + C1) * (2 * covariance + C2)
+                / ((meanX * meanX + meanY * meanY + C1) * (varianceX + varianceY + C2));
+            ssimSum += ssim * n;
+            measured += n;
         }
-        
-        return mse / (width * height * 3);
+
+        stats[0] = redError;
+        stats[1] = greenError;
+        stats[2] = blueError;
+        stats[3] = ssimSum;
+        stats[4] = measured;
     }
 
-    private double calculatePSNR(double mse) {
+    private static double calculatePSNR(double mse) {
         if (mse == 0) return Double.POSITIVE_INFINITY;
         return 10 * Math.log10(Math.pow(255, 2) / mse);
     }
 
-    private double calculateCompressionRatio(BufferedImage original, BufferedImage compressed) {
+    private double calculateCompressionRatio(BufferedImage original, long compressedBytes) {
         long originalSize = (long) original.getWidth() * original.getHeight() * 3;
-        
-        long compressedSize = (long) compressed.getWidth() * compressed.getHeight();
-        
-        return (double) originalSize / compressedSize;
+
+        return (double) originalSize / compressedBytes;
+    }
+
+    public static class Quality {
+        private final double mse;
+        private final double[] channelMse;
+        private final double ssim;
+        private final double sampledFraction;
+
+        Quality(double mse, double[] channelMse, double ssim, double sampledFraction) {
+            this.mse = mse;
+            this.channelMse = channelMse;
+            this.ssim = ssim;
+            this.sampledFraction = sampledFraction;
+        }
+
+        public double getMse() {
+            return mse;
+        }
+
+        public double getPsnr() {
+            return calculatePSNR(mse);
+        }
+
+        // 0 = red, 1 = green, 2 = blue
+        public double getChannelMse(int channel) {
+            return channelMse[channel];
+        }
+
+        public double getChannelPsnr(int channel) {
+            return calculatePSNR(channelMse[channel]);
+        }
+
+        public double getSsim() {
+            return ssim;
+        }
+
+        public double getSampledFraction() {
+            return sampledFraction;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,227 @@
+package main.java.compression.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+// Canonical Huffman code over the symbols 0..n-1. Only the code lengths are
+// stored; both sides derive the same codes from them. Codes up to
+// LOOKUP_BITS long are decoded with a single table lookup, longer ones by
+// walking the canonical ranges of each length.
+final class HuffmanCode {
+    static final int MAX_CODE_LENGTH = 24;
+    private static final int LOOKUP_BITS = 10;
+    private static final int LENGTH_BITS = 5;
+
+    private final byte[] lengths;
+    private final int[] codes;
+    // (symbol << LENGTH_BITS) | length, 0 where the code is longer than LOOKUP_BITS
+    private final int[] lookup;
+    private final int[] firstCode = new int[MAX_CODE_LENGTH + 2];
+    private final int[] firstIndex = new int[MAX_CODE_LENGTH + 2];
+    private final int[] lengthCounts = new int[MAX_CODE_LENGTH + 2];
+    private final int[] sortedSymbols;
+
+    HuffmanCode(byte[] lengths) {
+        this.lengths = lengths;
+        this.codes = new int[lengths.length];
+
+        long kraft = 0;
+        for (byte length : lengths) {
+            if (length < 0 || length > MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("Huffman code length out of range: " + length);
+            }
+            if (length > 0) {
+                lengthCounts[length]++;
+                kraft += 1L << (MAX_CODE_LENGTH - length);
+            }
+        }
+        if (kraft > 1L << MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException("Huffman code lengths do not form a prefix code");
+        }
+
+        int code = 0;
+        int index = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            firstCode[length] = code;
+            firstIndex[length] = index;
+            code = (code + lengthCounts[length]) << 1;
+            index += lengthCounts[length];
+        }
+
+        this.sortedSymbols = new int[index];
+        int[] next = Arrays.copyOf(firstIndex, firstIndex.length);
+        this.lookup = new int[1 << LOOKUP_BITS];
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            int length = lengths[symbol];
+            if (length == 0) {
+                continue;
+            }
+            int position = next[length]++;
+            sortedSymbols[position] = symbol;
+            codes[symbol] = firstCode[length] + position - firstIndex[length];
+            if (length <= LOOKUP_BITS) {
+                int first = codes[symbol] << (LOOKUP_BITS - length);
+                Arrays.fill(lookup, first, first + (1 << (LOOKUP_BITS - length)), (symbol << LENGTH_BITS) | length);
+            }
+        }
+    }
+
+    // Builds code lengths from symbol counts. When the tree gets deeper than
+    // MAX_CODE_LENGTH the counts are flattened and the tree rebuilt, which
+    // costs a fraction of a percent on the rare skewed stream.
+    static HuffmanCode fromCounts(long[] counts) {
+        long[] weights = counts.clone();
+        while (true) {
+            byte[] lengths = codeLengths(weights);
+            int longest = 0;
+            for (byte length : lengths) {
+                longest = Math.max(longest, length);
+            }
+            if (longest <= MAX_CODE_LENGTH) {
+                return new HuffmanCode(lengths);
+            }
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] > 0) {
+                    weights[i] = (weights[i] + 1) / 2;
+                }
+            }
+        }
+    }
+
+    private static byte[] codeLengths(long[] counts) {
+        int symbols = counts.length;
+        byte[] lengths = new byte[symbols];
+        long[] weight = new long[2 * symbols];
+        int[] parent = new int[2 * symbols];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+            (a, b) -> weight[a] != weight[b] ? Long.compare(weight[a], weight[b]) : Integer.compare(a, b));
+
+        for (int symbol = 0; symbol < symbols; symbol++) {
+            if (counts[symbol] > 0) {
+                weight[symbol] = counts[symbol];
+                queue.add(symbol);
+            }
+        }
+        if (queue.size() == 1) {
+            lengths[queue.poll()] = 1;
+            return lengths;
+        }
+
+        int node = symbols;
+        while (queue.size() > 1) {
+            int a = queue.poll();
+            int b = queue.poll();
+            weight[node] = weight[a] + weight[b];
+            parent[a] = node;
+            parent[b] = node;
+            queue.add(node++);
+        }
+        int root = node - 1;
+
+        for (int symbol = 0; symbol < symbols; symbol++) {
+            if (counts[symbol] > 0) {
+                int depth = 0;
+                for (int n = symbol; n != root; n = parent[n]) {
+                    depth++;
+                }
+                lengths[symbol] = (byte) Math.min(depth, Byte.MAX_VALUE);
+            }
+        }
+        return lengths;
+    }
+
+    byte[] getLengths() {
+        return lengths;
+    }
+
+    void write(BitWriter out, int symbol) {
+        if (lengths[symbol] == 0) {
+            throw new IllegalArgumentException("Symbol " + symbol + " has no Huffman code");
+        }
+        out.write(codes[symbol], lengths[symbol]);
+    }
+
+    int read(BitReader in) throws IOException {
+        int entry = lookup[in.peek(LOOKUP_BITS)];
+        if (entry != 0) {
+            in.skip(entry & ((1 << LENGTH_BITS) - 1));
+            return entry >>> LENGTH_BITS;
+        }
+        for (int length = LOOKUP_BITS + 1; length <= MAX_CODE_LENGTH; length++) {
+            int offset = in.peek(length) - firstCode[length];
+            if (offset >= 0 && offset < lengthCounts[length]) {
+                in.skip(length);
+                return sortedSymbols[firstIndex[length] + offset];
+            }
+        }
+        throw new IOException("Invalid Huffman code in tile data");
+    }
+
+    static class BitWriter {
+        private byte[] bytes = new byte[64];
+        private int size;
+        private long buffer;
+        private int bits;
+
+        void write(int code, int length) {
+            buffer = (buffer << length) | code;
+            bits += length;
+            while (bits >= 8) {
+                bits -= 8;
+                if (size == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, size * 2);
+                }
+                bytes[size++] = (byte) (buffer >>> bits);
+            }
+        }
+
+        // Pads the last byte with zero bits.
+        byte[] toByteArray() {
+            if (bits > 0) {
+                write(0, 8 - bits);
+            }
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    // Reads MSB-first bits from buffer[start, start + length); bits past the
+    // end read as zero and are caught by checkConsumed.
+    static class BitReader {
+        private final ByteBuffer source;
+        private final long limitBits;
+        private final int end;
+        private int position;
+        private long buffer;
+        private int bits;
+        private long consumed;
+
+        BitReader(ByteBuffer source, int start, int length) {
+            this.source = source;
+            this.position = start;
+            this.end = start + length;
+            this.limitBits = (long) length * 8;
+        }
+
+        int peek(int count) {
+            while (bits <= 56) {
+                buffer = (buffer << 8) | (position < end ? source.get(position) & 0xFF : 0);
+                position++;
+                bits += 8;
+            }
+            return (int) (buffer >>> (bits - count)) & ((1 << count) - 1);
+        }
+
+        void skip(int count) {
+            bits -= count;
+            consumed += count;
+        }
+
+        void checkConsumed() throws IOException {
+            if (consumed > limitBits) {
+                throw new IOException("Tile data ends in the middle of a Huffman code");
+            }
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package main.java.compression.utils;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
@@ -11,74 +14,111 @@ public class ImageLoader {
     private static final int TRAINING_IMAGES_PER_CATEGORY = 10;
     private static final int TEST_IMAGES_PER_CATEGORY = 5;
 
-    public Map<String, List<BufferedImage>> loadTrainingImages(String basePath) throws IOException {
-        Map<String, List<BufferedImage>> trainingImages = new HashMap<>();
-        System.out.println("Loading training images...");
-        
+    private final PipelineRecorder recorder;
+
+    public ImageLoader() {
+        this(new PipelineRecorder());
+    }
+
+    // Images are listed here and decoded one at a time by loadImage;
+    // BatchPipeline runs several decoders side by side.
+    public ImageLoader(PipelineRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public List<File> listTrainingFiles(String basePath) throws IOException {
+        List<File> trainingFiles = new ArrayList<>();
+        for (List<File> files : listTrainingFilesByCategory(basePath).values()) {
+            trainingFiles.addAll(files);
+        }
+        return trainingFiles;
+    }
+
+    public Map<String, List<File>> listTrainingFilesByCategory(String basePath) throws IOException {
+        Map<String, List<File>> trainingFiles = new LinkedHashMap<>();
         for (String category : CATEGORIES) {
             String categoryPath = basePath + File.separator + category;
-            System.out.printf("Loading %s training images from %s%n", category, categoryPath);
-            List<BufferedImage> images = loadImagesFromDirectory(categoryPath, TRAINING_IMAGES_PER_CATEGORY);
-            trainingImages.put(category, images);
+            trainingFiles.put(category, Arrays.asList(listImageFiles(categoryPath, TRAINING_IMAGES_PER_CATEGORY)));
         }
-        
-        return trainingImages;
+        return trainingFiles;
     }
 
-    public Map<String, List<BufferedImage>> loadTestImages(String basePath) throws IOException {
-        Map<String, List<BufferedImage>> testImages = new HashMap<>();
-        System.out.println("Loading test images...");
-        
+    // Every image in the directory, in name order, e.g. the frames of a
+    // sequence.
+    public List<File> listSequenceFiles(String directoryPath) throws IOException {
+        return Arrays.asList(listImageFiles(directoryPath, 1, Integer.MAX_VALUE));
+    }
+
+    public Map<String, List<File>> listTestFiles(String basePath) throws IOException {
+        Map<String, List<File>> testFiles = new LinkedHashMap<>();
         for (String category : CATEGORIES) {
             String categoryPath = basePath + File.separator + category;
-            System.out.printf("Loading %s test images from %s%n", category, categoryPath);
-            List<BufferedImage> images = loadImagesFromDirectory(categoryPath, TEST_IMAGES_PER_CATEGORY);
-            testImages.put(category, images);
+            testFiles.put(category, Arrays.asList(listImageFiles(categoryPath, TEST_IMAGES_PER_CATEGORY)));
         }
-        
-        return testImages;
+        return testFiles;
+    }
+
+    public BufferedImage loadImage(File file) throws IOException {
+        PipelineRecorder.Timer load = recorder.start(PipelineStage.LOAD, null);
+        BufferedImage image = readImage(file);
+        load.items(1).bytes(file.length()).stop();
+        PipelineRecorder.Timer preprocess = recorder.start(PipelineStage.PREPROCESS, null);
+        BufferedImage preprocessed = ImagePreprocessor.preprocessImage(image);
+        preprocess.items(1).stop();
+        return preprocessed;
     }
 
-    private List<BufferedImage> loadImagesFromDirectory(String directoryPath, int limit) throws IOException {
-        List<BufferedImage> images = new ArrayList<>();
+    // Decodes through an ImageReader so that large photos can be subsampled
+    // while decoding, close to the preprocessing target, instead of building
+    // the full-resolution raster first.
+    private BufferedImage readImage(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                throw new IOException("Failed to open image: " + file.getName());
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Failed to load image: " + file.getName());
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int factor = ImagePreprocessor.subsamplingFactor(reader.getWidth(0), reader.getHeight(0));
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private File[] listImageFiles(String directoryPath, int limit) throws IOException {
+        return listImageFiles(directoryPath, limit, limit);
+    }
+
+    private File[] listImageFiles(String directoryPath, int required, int limit) throws IOException {
         File directory = new File(directoryPath);
         
         if (!directory.exists() || !directory.isDirectory()) {
             throw new IOException("Directory not found: " + directoryPath);
         }
 
-        File[] files = directory.listFiles((_, name) -> 
+        File[] files = directory.listFiles((dir, name) -> 
             name.toLowerCase().endsWith(".jpg") || 
             name.toLowerCase().endsWith(".jpeg") || 
             name.toLowerCase().endsWith(".png"));
 
-        if (files == null || files.length < limit) {
+        if (files == null || files.length < required) {
             throw new IOException("Not enough images in directory: " + directoryPath + 
-                                ". Required: " + limit + ", Found: " + (files == null ? 0 : files.length));
+                                ". Required: " + required + ", Found: " + (files == null ? 0 : files.length));
         }
 
         Arrays.sort(files);
-
-        int processed = 0;
-        for (int i = 0; i < limit; i++) {
-            try {
-                BufferedImage image = ImageIO.read(files[i]);
-                if (image == null) {
-                    throw new IOException("Failed to load image: " + files[i].getName());
-                }
-                
-                image = ImagePreprocessor.preprocessImage(image);
-                
-                images.add(image);
-                processed++;
-                System.out.printf("\rProgress: %d/%d images loaded", processed, limit);
-                
-            } catch (IOException e) {
-                throw new IOException("Error loading image " + files[i].getName() + ": " + e.getMessage());
-            }
-        }
-        System.out.println();
-        return images;
+        return Arrays.copyOf(files, Math.min(limit, files.length));
     }
 
     public int getTotalImagesLoaded(Map<String, List<BufferedImage>> images) {
@@ -7,6 +7,13 @@ public class ImagePreprocessor {
     private static final int TARGET_WIDTH = 1920;
     private static final int TARGET_HEIGHT = 1080;
 
+    // Largest integer step that still leaves at least the target size, so a
+    // reader can skip pixels while decoding and resizeImage only has a small
+    // scale left to apply.
+    public static int subsamplingFactor(int width, int height) {
+        return Math.max(1, Math.min(width / TARGET_WIDTH, height / TARGET_HEIGHT));
+    }
+
     public static BufferedImage preprocessImage(BufferedImage original) {
         BufferedImage resized = resizeImage(original);
         return ensureEvenDimensions(resized);
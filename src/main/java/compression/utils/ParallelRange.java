@@ -0,0 +1,30 @@
+package main.java.compression.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+// Runs a body over the range [0, count) in chunks of at most grain on a
+// ForkJoinPool, or on the calling thread when there is no pool or only one
+// chunk. Chunks start at multiples of grain whatever the parallelism, so
+// per-chunk work is the same with 1 thread or many.
+public final class ParallelRange {
+
+    private ParallelRange() {
+    }
+
+    public interface Body {
+        void process(int from, int to);
+    }
+
+    public static void forEach(ForkJoinPool pool, int count, int grain, Body body) {
+        if (pool == null || count <= grain) {
+            body.process(0, count);
+            return;
+        }
+        int chunks = (count + grain - 1) / grain;
+        // A parallel stream started from inside a pool runs on that pool.
+        pool.submit(() -> IntStream.range(0, chunks).parallel()
+            .forEach(chunk -> body.process(chunk * grain, Math.min(count, (chunk + 1) * grain))))
+            .join();
+    }
+}
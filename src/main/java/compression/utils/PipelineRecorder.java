@@ -0,0 +1,234 @@
+package main.java.compression.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms per pipeline stage, plus one row per image
+// with its stage timings, size and quality. Every timed stage also emits a
+// StageEvent for Flight Recorder. The run report is written as JSON (stage
+// summaries) and CSV (per-image rows).
+public class PipelineRecorder {
+    private final Map<PipelineStage, StageStats> stages = new EnumMap<>(PipelineStage.class);
+    private final Map<String, ImageRow> images = new LinkedHashMap<>();
+    private final long startNanos = System.nanoTime();
+    private final Instant startTime = Instant.now();
+
+    public PipelineRecorder() {
+        for (PipelineStage stage : PipelineStage.values()) {
+            stages.put(stage, new StageStats());
+        }
+    }
+
+    public Timer start(PipelineStage stage, String image) {
+        return new Timer(stage, image);
+    }
+
+    public void record(PipelineStage stage, String image, long nanos, long items, long bytes) {
+        StageStats stats = stages.get(stage);
+        stats.latency.record(nanos);
+        stats.items.add(items);
+        stats.bytes.add(bytes);
+        if (image != null) {
+            synchronized (images) {
+                ImageRow row = images.computeIfAbsent(image, ImageRow::new);
+                row.stageNanos[stage.ordinal()] += nanos;
+                if (stage == PipelineStage.ENCODE) {
+                    row.blocks += items;
+                } else if (stage == PipelineStage.WRITE) {
+                    row.bytes += bytes;
+                }
+            }
+        }
+    }
+
+    public void recordImageSize(String image, int width, int height) {
+        synchronized (images) {
+            ImageRow row = images.computeIfAbsent(image, ImageRow::new);
+            row.width = width;
+            row.height = height;
+        }
+    }
+
+    public void recordFlatBlocks(String image, long flatBlocks) {
+        synchronized (images) {
+            images.computeIfAbsent(image, ImageRow::new).flatBlocks = flatBlocks;
+        }
+    }
+
+    public void recordQuality(String image, double psnr, double ssim) {
+        synchronized (images) {
+            ImageRow row = images.computeIfAbsent(image, ImageRow::new);
+            row.psnr = psnr;
+            row.ssim = ssim;
+        }
+    }
+
+    public LatencyHistogram getLatency(PipelineStage stage) {
+        return stages.get(stage).latency;
+    }
+
+    public long getItems(PipelineStage stage) {
+        return stages.get(stage).items.sum();
+    }
+
+    public long getBytes(PipelineStage stage) {
+        return stages.get(stage).bytes.sum();
+    }
+
+    // Items per second of time spent inside the stage, summed over threads.
+    public double getThroughput(PipelineStage stage) {
+        long nanos = getLatency(stage).getTotalNanos();
+        return nanos == 0 ? 0 : getItems(stage) * 1e9 / nanos;
+    }
+
+    public void printSummary() {
+        System.out.printf("%n%-10s %7s %10s %10s %10s %10s %14s%n",
+            "Stage", "Count", "Total ms", "p50 ms", "p99 ms", "Max ms", "Items/s");
+        for (PipelineStage stage : PipelineStage.values()) {
+            LatencyHistogram latency = getLatency(stage);
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            System.out.printf("%-10s %7d %10.1f %10.2f %10.2f %10.2f %14.1f%n",
+                stage.getLabel(), latency.getCount(), latency.getTotalNanos() / 1e6,
+                latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(99) / 1e6,
+                latency.getMaxNanos() / 1e6, getThroughput(stage));
+        }
+    }
+
+    public void writeJson(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            out.write("{\n");
+            out.write("  \"started\": \"" + startTime + "\",\n");
+            out.write(String.format(Locale.ROOT, "  \"wallMillis\": %.1f,%n", (System.nanoTime() - startNanos) / 1e6));
+            out.write("  \"images\": " + imageRows().size() + ",\n");
+            out.write("  \"stages\": {");
+            String separator = "\n";
+            for (PipelineStage stage : PipelineStage.values()) {
+                LatencyHistogram latency = getLatency(stage);
+                out.write(separator);
+                out.write(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"totalMillis\": %.3f, \"meanMillis\": %.3f, "
+                        + "\"p50Millis\": %.3f, \"p99Millis\": %.3f, \"maxMillis\": %.3f, "
+                        + "\"items\": %d, \"bytes\": %d, \"itemsPerSecond\": %.1f}",
+                    stage.getLabel(), latency.getCount(), latency.getTotalNanos() / 1e6,
+                    latency.getMeanNanos() / 1e6, latency.getPercentileNanos(50) / 1e6,
+                    latency.getPercentileNanos(99) / 1e6, latency.getMaxNanos() / 1e6,
+                    getItems(stage), getBytes(stage), getThroughput(stage)));
+                separator = ",\n";
+            }
+            out.write("\n  }\n}\n");
+        }
+    }
+
+    public void writeCsv(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            out.write("image,width,height");
+            for (PipelineStage stage : PipelineStage.values()) {
+                out.write("," + stage.getLabel() + "_ms");
+            }
+            out.write(",blocks,flat_blocks,bytes,bits_per_pixel,encode_blocks_per_second,psnr,ssim\n");
+
+            for (ImageRow row : imageRows()) {
+                StringBuilder line = new StringBuilder(row.image).append(',')
+                    .append(row.width).append(',').append(row.height);
+                for (long nanos : row.stageNanos) {
+                    line.append(String.format(Locale.ROOT, ",%.3f", nanos / 1e6));
+                }
+                long encodeNanos = row.stageNanos[PipelineStage.ENCODE.ordinal()];
+                long pixels = (long) row.width * row.height;
+                line.append(',').append(row.blocks).append(',').append(row.flatBlocks).append(',').append(row.bytes)
+                    .append(pixels == 0 ? "," : String.format(Locale.ROOT, ",%.4f", row.bytes * 8.0 / pixels))
+                    .append(String.format(Locale.ROOT, ",%.0f", encodeNanos == 0 ? 0 : row.blocks * 1e9 / encodeNanos))
+                    .append(Double.isNaN(row.psnr) ? "," : String.format(Locale.ROOT, ",%.3f", row.psnr))
+                    .append(Double.isNaN(row.ssim) ? "," : String.format(Locale.ROOT, ",%.4f", row.ssim))
+                    .append('\n');
+                out.write(line.toString());
+            }
+        }
+    }
+
+    private List<ImageRow> imageRows() {
+        synchronized (images) {
+            return new ArrayList<>(images.values());
+        }
+    }
+
+    public class Timer {
+        private final PipelineStage stage;
+        private final String image;
+        private final StageEvent event = new StageEvent();
+        private final long start;
+        private long items;
+        private long bytes;
+        private boolean stopped;
+
+        private Timer(PipelineStage stage, String image) {
+            this.stage = stage;
+            this.image = image;
+            event.begin();
+            this.start = System.nanoTime();
+        }
+
+        public Timer items(long items) {
+            this.items = items;
+            return this;
+        }
+
+        public Timer bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+
+        public long stop() {
+            if (stopped) {
+                return 0;
+            }
+            stopped = true;
+            long nanos = System.nanoTime() - start;
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stage.getLabel();
+                event.image = image;
+                event.items = items;
+                event.bytes = bytes;
+                event.commit();
+            }
+            record(stage, image, nanos, items, bytes);
+            return nanos;
+        }
+    }
+
+    private static class StageStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder items = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private static class ImageRow {
+        final String image;
+        final long[] stageNanos = new long[PipelineStage.values().length];
+        int width;
+        int height;
+        long blocks;
+        long flatBlocks;
+        long bytes;
+        double psnr = Double.NaN;
+        double ssim = Double.NaN;
+
+        ImageRow(String image) {
+            this.image = image;
+        }
+    }
+}
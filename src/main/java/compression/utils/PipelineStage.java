@@ -0,0 +1,21 @@
+package main.java.compression.utils;
+
+public enum PipelineStage {
+    LOAD("load"),
+    PREPROCESS("preprocess"),
+    TRAIN("train"),
+    ENCODE("encode"),
+    DECODE("decode"),
+    WRITE("write"),
+    METRICS("metrics");
+
+    private final String label;
+
+    PipelineStage(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,57 @@
+package main.java.compression.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+
+public final class PixelAccess {
+
+    private PixelAccess() {
+    }
+
+    // Packed 0x??RRGGBB pixels in row-major order. For TYPE_INT_RGB and
+    // TYPE_INT_ARGB this is the image's own backing array (writes go straight
+    // into the image); any other type is converted into a fresh copy.
+    // Subimages share their parent's array, so they are always copied.
+    public static int[] pixels(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        boolean whole = raster.getParent() == null && raster.getSampleModelTranslateX() == 0
+            && raster.getSampleModelTranslateY() == 0;
+        if (whole && (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)) {
+            return ((DataBufferInt) raster.getDataBuffer()).getData();
+        }
+        if (whole && (image.getType() == BufferedImage.TYPE_3BYTE_BGR || image.getType() == BufferedImage.TYPE_4BYTE_ABGR)) {
+            return unpackBytes(raster, width, height);
+        }
+        return image.getRGB(0, 0, width, height, new int[width * height], 0, width);
+    }
+
+    // ImageIO decodes most JPEGs and PNGs into interleaved byte rasters;
+    // reading the bytes directly skips getRGB's per-pixel color model calls.
+    private static int[] unpackBytes(WritableRaster raster, int width, int height) {
+        ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int[] bands = model.getBandOffsets();
+        int pixelStride = model.getPixelStride();
+        int scanlineStride = model.getScanlineStride();
+        int start = raster.getDataBuffer().getOffset();
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int row = start + y * scanlineStride;
+            for (int x = 0, i = y * width; x < width; x++, i++) {
+                int p = row + x * pixelStride;
+                pixels[i] = (data[p + bands[0]] & 0xFF) << 16 | (data[p + bands[1]] & 0xFF) << 8
+                    | data[p + bands[2]] & 0xFF;
+            }
+        }
+        return pixels;
+    }
+
+    public static BufferedImage createRgbImage(int width, int height) {
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+}
@@ -0,0 +1,29 @@
+package main.java.compression.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// One pipeline stage for one image, visible in JDK Flight Recorder
+// recordings (e.g. -XX:StartFlightRecording) next to GC and allocation data.
+@Name("vq.PipelineStage")
+@Label("Pipeline Stage")
+@Category({"VQ Compressor"})
+@Description("Time spent in one stage of the compression pipeline")
+class StageEvent extends jdk.jfr.Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Image")
+    String image;
+
+    @Label("Items")
+    @Description("Blocks encoded or decoded, images loaded or vectors trained on")
+    long items;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
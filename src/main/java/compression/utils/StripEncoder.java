@@ -0,0 +1,95 @@
+package main.java.compression.utils;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import main.java.compression.CompressedImage;
+import main.java.compression.ImageCompressor;
+
+// Native-resolution encoding for images too large to decode at once. The
+// source is read in horizontal strips through ImageReadParam.setSourceRegion,
+// each strip is encoded on its own and its indices are written straight to
+// their place in the .vq file, so memory depends on the strip height and
+// the image width, not on the image size.
+//
+// Formats with random access to rows (TIFF strips or tiles) decode each
+// strip independently; sequential formats such as JPEG and PNG have to
+// decode everything above a region too, so taller strips pay off there.
+public class StripEncoder {
+    private static final int DEFAULT_STRIP_HEIGHT = 256;
+    private static final String[] RGB_CHANNELS = {"red", "green", "blue"};
+
+    private final ImageCompressor compressor;
+    private final VQFileWriter writer;
+    private final int stripHeight;
+
+    public StripEncoder(ImageCompressor compressor, VQFileWriter writer) {
+        this(compressor, writer, DEFAULT_STRIP_HEIGHT - DEFAULT_STRIP_HEIGHT % compressor.getBlockHeight());
+    }
+
+    public StripEncoder(ImageCompressor compressor, VQFileWriter writer, int stripHeight) {
+        if (stripHeight < compressor.getBlockHeight() || stripHeight % compressor.getBlockHeight() != 0) {
+            throw new IllegalArgumentException("Strip height must be a positive multiple of the block height "
+                + compressor.getBlockHeight() + ": " + stripHeight);
+        }
+        this.compressor = compressor;
+        this.writer = writer;
+        this.stripHeight = stripHeight;
+    }
+
+    public long encodeRGB(File source, Map<String, double[][]> codebooks, Path output) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source)) {
+            if (input == null) {
+                throw new IOException("Failed to open image: " + source.getName());
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Failed to load image: " + source.getName());
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                return encodeStrips(reader, codebooks, output);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(output);
+                throw e;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private long encodeStrips(ImageReader reader, Map<String, double[][]> codebooks, Path output) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int blockHeight = compressor.getBlockHeight();
+        // Trailing rows that do not fill a block are dropped, as in encodeRGB.
+        int codedHeight = height - height % blockHeight;
+        ImageReadParam param = reader.getDefaultReadParam();
+
+        try (VQFileWriter.StripWriter strips = writer.openStrips(output, width, height,
+                CompressedImage.COLOR_SPACE_RGB, compressor.getBlockWidth(), blockHeight, RGB_CHANNELS, codebooks,
+                compressor.usesFlatIndices())) {
+            for (int y = 0; y < codedHeight; y += stripHeight) {
+                param.setSourceRegion(new Rectangle(0, y, width, Math.min(stripHeight, codedHeight - y)));
+                BufferedImage strip = reader.read(0, param);
+                strips.writeStrip(compressor.encodeRGB(strip, codebooks), y / blockHeight);
+                System.out.printf("\rEncoded %d/%d rows", Math.min(y + stripHeight, codedHeight), codedHeight);
+            }
+            System.out.println();
+            return strips.getSize();
+        }
+    }
+}
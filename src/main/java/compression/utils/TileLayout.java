@@ -0,0 +1,111 @@
+package main.java.compression.utils;
+
+// Splits an image into a grid of tiles, given in image pixels, and maps
+// every tile to the range of blocks it covers in each channel's plane.
+// Subsampled planes use proportionally smaller tiles, so one tile index
+// addresses the same image area in every channel. The last tile in a row
+// or column takes whatever blocks remain, which may be none for a small
+// chroma plane.
+final class TileLayout {
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int tilesX;
+    private final int tilesY;
+    private final int[] planeBlocksPerRow;
+    private final int[] planeBlockRows;
+    private final int[] tileBlocksX;
+    private final int[] tileBlocksY;
+
+    TileLayout(int width, int height, int blockWidth, int blockHeight, int tileWidth, int tileHeight,
+               int[] planeWidths, int[] planeHeights) {
+        if (tileWidth < 1 || tileHeight < 1) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileWidth + "x" + tileHeight);
+        }
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.tilesX = Math.max(1, ceilDiv(width, tileWidth));
+        this.tilesY = Math.max(1, ceilDiv(height, tileHeight));
+
+        int channels = planeWidths.length;
+        this.planeBlocksPerRow = new int[channels];
+        this.planeBlockRows = new int[channels];
+        this.tileBlocksX = new int[channels];
+        this.tileBlocksY = new int[channels];
+        for (int c = 0; c < channels; c++) {
+            planeBlocksPerRow[c] = planeWidths[c] / blockWidth;
+            planeBlockRows[c] = planeHeights[c] / blockHeight;
+            tileBlocksX[c] = tileBlocks(tilesX, tileWidth, ceilDiv(width, planeWidths[c]) * blockWidth,
+                planeBlocksPerRow[c]);
+            tileBlocksY[c] = tileBlocks(tilesY, tileHeight, ceilDiv(height, planeHeights[c]) * blockHeight,
+                planeBlockRows[c]);
+        }
+    }
+
+    private static int tileBlocks(int tiles, int tileSize, int blockSpan, int planeBlocks) {
+        if (tiles == 1) {
+            return planeBlocks;
+        }
+        if (tileSize % blockSpan != 0) {
+            throw new IllegalArgumentException("Tile size " + tileSize + " is not a multiple of the "
+                + blockSpan + " pixels a block covers in a plane");
+        }
+        return tileSize / blockSpan;
+    }
+
+    int getTileWidth() {
+        return tileWidth;
+    }
+
+    int getTileHeight() {
+        return tileHeight;
+    }
+
+    int getTilesX() {
+        return tilesX;
+    }
+
+    int getTilesY() {
+        return tilesY;
+    }
+
+    int getTileCount() {
+        return tilesX * tilesY;
+    }
+
+    int getChannelCount() {
+        return planeBlocksPerRow.length;
+    }
+
+    int getPlaneBlocksPerRow(int channel) {
+        return planeBlocksPerRow[channel];
+    }
+
+    int getPlaneBlockRows(int channel) {
+        return planeBlockRows[channel];
+    }
+
+    int firstBlockX(int channel, int tileX) {
+        return Math.min(tileX * tileBlocksX[channel], planeBlocksPerRow[channel]);
+    }
+
+    int endBlockX(int channel, int tileX) {
+        return tileX == tilesX - 1 ? planeBlocksPerRow[channel] : firstBlockX(channel, tileX + 1);
+    }
+
+    int firstBlockY(int channel, int tileY) {
+        return Math.min(tileY * tileBlocksY[channel], planeBlockRows[channel]);
+    }
+
+    int endBlockY(int channel, int tileY) {
+        return tileY == tilesY - 1 ? planeBlockRows[channel] : firstBlockY(channel, tileY + 1);
+    }
+
+    int tileBlockCount(int channel, int tileX, int tileY) {
+        return (endBlockX(channel, tileX) - firstBlockX(channel, tileX))
+            * (endBlockY(channel, tileY) - firstBlockY(channel, tileY));
+    }
+
+    static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,45 @@
+package main.java.compression.utils;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import main.java.compression.CompressedImage;
+import main.java.compression.ImageCompressor;
+
+// The tiles read for a region of interest: a CompressedImage of the
+// tile-aligned area at (x, y), and the rectangle that was asked for.
+public class TileRegion {
+    private final CompressedImage image;
+    private final int x;
+    private final int y;
+    private final Rectangle requested;
+
+    TileRegion(CompressedImage image, int x, int y, Rectangle requested) {
+        this.image = image;
+        this.x = x;
+        this.y = y;
+        this.requested = requested;
+    }
+
+    public CompressedImage getImage() {
+        return image;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public Rectangle getRequested() {
+        return requested;
+    }
+
+    // Decodes the covering tiles and crops them to the requested rectangle.
+    public BufferedImage decode(ImageCompressor compressor) {
+        return compressor.decode(image).getSubimage(requested.x - x, requested.y - y,
+            requested.width, requested.height);
+    }
+}
@@ -0,0 +1,101 @@
+package main.java.compression.utils;
+
+import java.io.IOException;
+
+import main.java.compression.CompressedImage;
+
+// Maps the indices of an entropy-coded tile to Huffman symbols and back.
+// A codeword keeps its index; a block with the same index as the block to
+// its left becomes the repeat symbol; a flat block becomes the difference
+// between its mean and the mean of its left neighbour (the block above at
+// the start of a row), which stays small across smooth gradients. Only
+// neighbours inside the tile are used, so every tile decodes on its own.
+// In a frame with a reference frame, a block with the same index as the
+// co-located block of the reference becomes the reuse symbol first.
+final class TileSymbols {
+    private static final int NO_NEIGHBOUR_MEAN = 128;
+    private static final int MAX_DELTA = CompressedImage.FLAT_LEVELS - 1;
+
+    private final int codebookSize;
+    private final int[] codewordMeans;
+    private final int reuse;
+    private final int repeat;
+
+    // codebookBytes is the codebook as stored in the file, so the writer and
+    // the reader predict flat means from the same codeword means.
+    TileSymbols(int codebookSize, byte[] codebookBytes, int vectorSize, boolean flatBlocks, boolean referenced) {
+        this.codebookSize = codebookSize;
+        int symbols = codebookSize;
+        if (flatBlocks) {
+            codewordMeans = new int[codebookSize];
+            for (int i = 0; i < codebookSize; i++) {
+                int sum = 0;
+                for (int j = 0; j < vectorSize; j++) {
+                    sum += codebookBytes[i * vectorSize + j] & 0xFF;
+                }
+                codewordMeans[i] = (sum + vectorSize / 2) / vectorSize;
+            }
+            symbols += 2 * MAX_DELTA + 1;
+        } else {
+            codewordMeans = null;
+        }
+        reuse = referenced ? symbols++ : -1;
+        repeat = symbols;
+    }
+
+    int getSymbolCount() {
+        return repeat + 1;
+    }
+
+    int getReuseSymbol() {
+        return reuse;
+    }
+
+    // The symbol for indices[i]; stride is the row length of indices and
+    // reference the co-located index of the reference frame, if any.
+    int symbol(int[] indices, int i, int stride, boolean rowStart, boolean topRow, int reference) {
+        int index = indices[i];
+        if (reuse >= 0 && index == reference) {
+            return reuse;
+        }
+        if (!rowStart && index == indices[i - 1]) {
+            return repeat;
+        }
+        if (index < codebookSize) {
+            return index;
+        }
+        return codebookSize + MAX_DELTA + (index - codebookSize) - predictMean(indices, i, stride, rowStart, topRow);
+    }
+
+    int index(int symbol, int[] indices, int i, int stride, boolean rowStart, boolean topRow, int reference)
+            throws IOException {
+        if (symbol == reuse) {
+            return reference;
+        }
+        if (symbol == repeat) {
+            if (rowStart) {
+                throw new IOException("Repeat symbol at the start of a tile row");
+            }
+            return indices[i - 1];
+        }
+        if (symbol < codebookSize) {
+            return symbol;
+        }
+        int mean = symbol - codebookSize - MAX_DELTA + predictMean(indices, i, stride, rowStart, topRow);
+        if (mean < 0 || mean > MAX_DELTA) {
+            throw new IOException("Flat block mean out of range: " + mean);
+        }
+        return CompressedImage.flatIndex(codebookSize, mean);
+    }
+
+    private int predictMean(int[] indices, int i, int stride, boolean rowStart, boolean topRow) {
+        if (!rowStart) {
+            return mean(indices[i - 1]);
+        }
+        return topRow ? NO_NEIGHBOUR_MEAN : mean(indices[i - stride]);
+    }
+
+    private int mean(int index) {
+        return index < codebookSize ? codewordMeans[index] : index - codebookSize;
+    }
+}
@@ -0,0 +1,423 @@
+package main.java.compression.utils;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import main.java.compression.CompressedImage;
+
+public class VQFileReader {
+
+    // The header is parsed from a prefix of the file that starts at this
+    // size and doubles until the whole header fits.
+    private static final int HEADER_PREFIX_BYTES = 64 * 1024;
+
+    public CompressedImage read(Path path) throws IOException {
+        return read(path, null);
+    }
+
+    public CompressedImage read(Path path, Map<String, double[][]> externalCodebooks) throws IOException {
+        return read(path, externalCodebooks, null);
+    }
+
+    // A frame written with a reference frame (see SequenceEncoder) needs the
+    // previous frame of its sequence as read by this reader.
+    public CompressedImage read(Path path, Map<String, double[][]> externalCodebooks, CompressedImage reference)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = readHeader(channel, path, externalCodebooks, reference);
+            TileLayout layout = header.layout;
+            return readTiles(channel, path, header, 0, 0, layout.getTilesX() - 1, layout.getTilesY() - 1,
+                header.width, header.height);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated VQ file: " + path);
+        }
+    }
+
+    public TileRegion readRegion(Path path, Rectangle region) throws IOException {
+        return readRegion(path, region, null);
+    }
+
+    // Reads only the tiles that overlap the region, each at its own offset,
+    // so the bytes of other tiles are never touched.
+    public TileRegion readRegion(Path path, Rectangle region, Map<String, double[][]> externalCodebooks)
+            throws IOException {
+        return readRegion(path, region, externalCodebooks, null);
+    }
+
+    // The reference is the whole previous frame, not a region of it.
+    public TileRegion readRegion(Path path, Rectangle region, Map<String, double[][]> externalCodebooks,
+                                 CompressedImage reference) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = readHeader(channel, path, externalCodebooks, reference);
+            Rectangle requested = region.intersection(new Rectangle(0, 0, header.width, header.height));
+            if (requested.isEmpty()) {
+                throw new IllegalArgumentException("Region " + region + " lies outside the "
+                    + header.width + "x" + header.height + " image");
+            }
+
+            TileLayout layout = header.layout;
+            int tileX0 = requested.x / layout.getTileWidth();
+            int tileY0 = requested.y / layout.getTileHeight();
+            int tileX1 = Math.min((requested.x + requested.width - 1) / layout.getTileWidth(), layout.getTilesX() - 1);
+            int tileY1 = Math.min((requested.y + requested.height - 1) / layout.getTileHeight(), layout.getTilesY() - 1);
+            // A last tile may hold no blocks of a subsampled plane; its edge
+            // samples are repeated from the tile before, so read that one too.
+            while (tileX0 > 0 && hasEmptyChannel(layout, tileX0, tileX1, true)) {
+                tileX0--;
+            }
+            while (tileY0 > 0 && hasEmptyChannel(layout, tileY0, tileY1, false)) {
+                tileY0--;
+            }
+            int x = tileX0 * layout.getTileWidth();
+            int y = tileY0 * layout.getTileHeight();
+            int width = Math.min((tileX1 + 1) * layout.getTileWidth(), header.width) - x;
+            int height = Math.min((tileY1 + 1) * layout.getTileHeight(), header.height) - y;
+
+            CompressedImage image = readTiles(channel, path, header, tileX0, tileY0, tileX1, tileY1, width, height);
+            return new TileRegion(image, x, y, requested);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated VQ file: " + path);
+        }
+    }
+
+    private Header readHeader(FileChannel channel, Path path, Map<String, double[][]> externalCodebooks,
+                              CompressedImage reference) throws IOException {
+        long size = channel.size();
+        int length = (int) Math.min(size, HEADER_PREFIX_BYTES);
+        while (true) {
+            ByteBuffer buffer = readAt(channel, path, 0, length, null);
+            try {
+                return parseHeader(buffer, path, externalCodebooks, reference);
+            } catch (BufferUnderflowException e) {
+                if (length == size || length == Integer.MAX_VALUE) {
+                    throw e;
+                }
+                length = (int) Math.min(size, Math.min(2L * length, Integer.MAX_VALUE));
+            }
+        }
+    }
+
+    private Header parseHeader(ByteBuffer buffer, Path path, Map<String, double[][]> externalCodebooks,
+                               CompressedImage reference) throws IOException {
+        if (buffer.getInt() != VQFormat.MAGIC) {
+            throw new IOException("Not a VQ file: " + path);
+        }
+        Header header = new Header();
+        header.version = buffer.getShort();
+        if (header.version < VQFormat.VERSION_IMAGE_SIZED_PLANES || header.version > VQFormat.VERSION) {
+            throw new IOException("Unsupported VQ file version " + header.version + ": " + path);
+        }
+        short flags = buffer.getShort();
+        if ((flags & ~VQFormat.KNOWN_FLAGS) != 0) {
+            throw new IOException("Unsupported VQ file flags 0x" + Integer.toHexString(flags & 0xFFFF) + ": " + path);
+        }
+        boolean embedded = (flags & VQFormat.FLAG_EMBEDDED_CODEBOOK) != 0;
+        boolean entropyCoded = (flags & VQFormat.FLAG_ENTROPY_CODED) != 0;
+        boolean flatBlocks = (flags & VQFormat.FLAG_FLAT_BLOCKS) != 0;
+        if (entropyCoded && header.version < VQFormat.VERSION) {
+            throw new IOException("Entropy-coded VQ file without a tile table: " + path);
+        }
+        boolean referenced = (flags & VQFormat.FLAG_REFERENCE_FRAME) != 0;
+        if (referenced && !entropyCoded) {
+            throw new IOException("Reference frame flag on a VQ file without entropy coding: " + path);
+        }
+        if (!embedded && externalCodebooks == null) {
+            throw new IOException("VQ file references external codebooks but none were supplied: " + path);
+        }
+        if (referenced && reference == null) {
+            throw new IOException("VQ file is coded against the previous frame but none was supplied: " + path);
+        }
+
+        header.colorSpace = buffer.get();
+        header.blockWidth = buffer.get();
+        header.blockHeight = buffer.get();
+        int channelCount = buffer.get();
+        header.width = buffer.getInt();
+        header.height = buffer.getInt();
+
+        header.channels = new String[channelCount];
+        header.codebookSizes = new int[channelCount];
+        header.indexCounts = new int[channelCount];
+        header.planeWidths = new int[channelCount];
+        header.planeHeights = new int[channelCount];
+        int[] blockCounts = new int[channelCount];
+        header.codebooks = new HashMap<>();
+        if (entropyCoded) {
+            header.codes = new HuffmanCode[channelCount];
+            header.symbols = new TileSymbols[channelCount];
+        }
+
+        for (int c = 0; c < channelCount; c++) {
+            byte[] name = new byte[buffer.get() & 0xFF];
+            buffer.get(name);
+            header.channels[c] = new String(name, StandardCharsets.UTF_8);
+            header.codebookSizes[c] = buffer.getInt();
+            header.indexCounts[c] = VQFormat.indexCount(header.codebookSizes[c], flatBlocks);
+            int vectorSize = buffer.get();
+            int checksum = buffer.getInt();
+            blockCounts[c] = buffer.getInt();
+            if (header.version == VQFormat.VERSION_IMAGE_SIZED_PLANES) {
+                header.planeWidths[c] = header.width;
+                header.planeHeights[c] = header.height;
+            } else {
+                header.planeWidths[c] = buffer.getInt();
+                header.planeHeights[c] = buffer.getInt();
+            }
+
+            byte[] codebookBytes;
+            if (embedded) {
+                codebookBytes = new byte[header.codebookSizes[c] * vectorSize];
+                buffer.get(codebookBytes);
+                if (VQFormat.checksum(codebookBytes) != checksum) {
+                    throw new IOException("Codebook checksum mismatch for channel '" + header.channels[c] + "': "
+                        + path);
+                }
+                header.codebooks.put(header.channels[c],
+                    VQFormat.dequantizeCodebook(codebookBytes, header.codebookSizes[c], vectorSize));
+            } else {
+                double[][] codebook = externalCodebooks.get(header.channels[c]);
+                codebookBytes = codebook == null ? null : VQFormat.quantizeCodebook(codebook);
+                if (codebook == null || codebook.length != header.codebookSizes[c]
+                        || VQFormat.checksum(codebookBytes) != checksum) {
+                    throw new IOException("Codebook mismatch for channel '" + header.channels[c] + "': " + path);
+                }
+                header.codebooks.put(header.channels[c], codebook);
+            }
+
+            if (entropyCoded) {
+                header.symbols[c] = new TileSymbols(header.codebookSizes[c], codebookBytes,
+                    codebookBytes.length / header.codebookSizes[c], flatBlocks, referenced);
+                byte[] lengths = new byte[header.symbols[c].getSymbolCount()];
+                buffer.get(lengths);
+                try {
+                    header.codes[c] = new HuffmanCode(lengths);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage() + " for channel '" + header.channels[c] + "': " + path);
+                }
+            }
+        }
+
+        if (referenced) {
+            if (reference.getWidth() != header.width || reference.getHeight() != header.height
+                    || reference.getBlockWidth() != header.blockWidth || reference.getBlockHeight() != header.blockHeight
+                    || !Arrays.equals(reference.getChannels(), header.channels)) {
+                throw new IOException("Reference frame does not match the size or channels of " + path);
+            }
+            header.references = new int[channelCount][];
+            for (int c = 0; c < channelCount; c++) {
+                if (reference.getPlaneWidth(c) != header.planeWidths[c]
+                        || reference.getPlaneHeight(c) != header.planeHeights[c]
+                        || reference.getCodebook(c).length != header.codebookSizes[c]) {
+                    throw new IOException("Reference frame does not match channel '" + header.channels[c] + "': "
+                        + path);
+                }
+                header.references[c] = reference.getIndices(c);
+            }
+        }
+
+        if (header.version >= VQFormat.VERSION) {
+            int tileWidth = buffer.getInt();
+            int tileHeight = buffer.getInt();
+            header.layout = new TileLayout(header.width, header.height, header.blockWidth, header.blockHeight,
+                tileWidth, tileHeight, header.planeWidths, header.planeHeights);
+            header.tableStart = buffer.position();
+        } else {
+            // Older files hold one untiled stream per channel, i.e. a single tile.
+            header.layout = new TileLayout(header.width, header.height, header.blockWidth, header.blockHeight,
+                Math.max(1, header.width), Math.max(1, header.height), header.planeWidths, header.planeHeights);
+            header.streamOffsets = new long[channelCount];
+            long offset = buffer.position();
+            for (int c = 0; c < channelCount; c++) {
+                header.streamOffsets[c] = offset;
+                offset += (long) blockCounts[c] * VQFormat.indexBytes(header.indexCounts[c]);
+            }
+        }
+        return header;
+    }
+
+    // Assembles the indices of a rectangle of tiles into a CompressedImage of
+    // the area they cover.
+    private CompressedImage readTiles(FileChannel channel, Path path, Header header, int tileX0, int tileY0,
+                                      int tileX1, int tileY1, int width, int height) throws IOException {
+        TileLayout layout = header.layout;
+        int channelCount = header.channels.length;
+        int tilesAcross = tileX1 - tileX0 + 1;
+        long[] offsets = new long[(tileY1 - tileY0 + 1) * tilesAcross * channelCount];
+        int[] lengths = new int[offsets.length];
+        readTileTable(channel, path, header, tileX0, tileY0, tileX1, tileY1, offsets, lengths);
+        ByteBuffer buffer = null;
+        int[] planeWidths = new int[channelCount];
+        int[] planeHeights = new int[channelCount];
+        int[][] indices = new int[channelCount][];
+
+        for (int c = 0; c < channelCount; c++) {
+            planeWidths[c] = scaledSize(width, header.width, header.planeWidths[c]);
+            planeHeights[c] = scaledSize(height, header.height, header.planeHeights[c]);
+            int originX = layout.firstBlockX(c, tileX0);
+            int originY = layout.firstBlockY(c, tileY0);
+            int blocksPerRow = layout.endBlockX(c, tileX1) - originX;
+            int blockRows = layout.endBlockY(c, tileY1) - originY;
+            if (blocksPerRow != planeWidths[c] / header.blockWidth || blockRows != planeHeights[c] / header.blockHeight) {
+                throw new IOException("Tile layout does not match the plane size of channel " + header.channels[c]);
+            }
+            indices[c] = new int[blocksPerRow * blockRows];
+            int indexBytes = VQFormat.indexBytes(header.indexCounts[c]);
+
+            for (int tileY = tileY0; tileY <= tileY1; tileY++) {
+                for (int tileX = tileX0; tileX <= tileX1; tileX++) {
+                    int entry = ((tileY - tileY0) * tilesAcross + tileX - tileX0) * channelCount + c;
+                    int fromX = layout.firstBlockX(c, tileX);
+                    int toX = layout.endBlockX(c, tileX);
+                    int fromY = layout.firstBlockY(c, tileY);
+                    int toY = layout.endBlockY(c, tileY);
+                    int length = header.codes != null ? lengths[entry] : (toX - fromX) * (toY - fromY) * indexBytes;
+                    buffer = readAt(channel, path, offsets[entry], length, buffer);
+                    if (header.codes != null) {
+                        decodeTile(buffer, length, header.codes[c],
+                            header.symbols[c], indices[c],
+                            (fromY - originY) * blocksPerRow + fromX - originX, blocksPerRow, toX - fromX, toY - fromY,
+                            header.references == null ? null : header.references[c],
+                            fromY * layout.getPlaneBlocksPerRow(c) + fromX, layout.getPlaneBlocksPerRow(c));
+                        continue;
+                    }
+                    int position = 0;
+                    for (int by = fromY; by < toY; by++) {
+                        int row = (by - originY) * blocksPerRow - originX;
+                        for (int bx = fromX; bx < toX; bx++) {
+                            int index = indexBytes == 1
+                                ? buffer.get(position) & 0xFF
+                                : buffer.getShort(position) & 0xFFFF;
+                            if (index >= header.indexCounts[c]) {
+                                throw new IOException("Corrupt index " + index + " for channel '"
+                                    + header.channels[c] + "' of " + header.indexCounts[c] + " values: " + path);
+                            }
+                            indices[c][row + bx] = index;
+                            position += indexBytes;
+                        }
+                    }
+                }
+            }
+        }
+
+        return new CompressedImage(width, height, header.colorSpace, header.blockWidth, header.blockHeight,
+            header.channels, planeWidths, planeHeights, indices, header.codebooks);
+    }
+
+    // reference holds the whole plane of the reference frame, if any, and
+    // referenceOffset the first block of the tile in it. A tile without data
+    // in such a frame keeps all of its reference indices.
+    private static void decodeTile(ByteBuffer buffer, int length, HuffmanCode code,
+                                   TileSymbols symbols, int[] indices, int offset, int stride, int width, int rows,
+                                   int[] reference, int referenceOffset, int referenceStride) throws IOException {
+        if (reference != null && length == 0) {
+            for (int row = 0; row < rows; row++) {
+                System.arraycopy(reference, referenceOffset + row * referenceStride, indices, offset + row * stride,
+                    width);
+            }
+            return;
+        }
+        HuffmanCode.BitReader in = new HuffmanCode.BitReader(buffer, 0, length);
+        for (int row = 0; row < rows; row++) {
+            int start = offset + row * stride;
+            int referenceStart = referenceOffset + row * referenceStride;
+            for (int i = start; i < start + width; i++) {
+                indices[i] = symbols.index(code.read(in), indices, i, stride, i == start, row == 0,
+                    reference == null ? -1 : reference[referenceStart + i - start]);
+            }
+        }
+        in.checkConsumed();
+    }
+
+    private static boolean hasEmptyChannel(TileLayout layout, int from, int to, boolean horizontal) {
+        for (int c = 0; c < layout.getChannelCount(); c++) {
+            int blocks = horizontal
+                ? layout.endBlockX(c, to) - layout.firstBlockX(c, from)
+                : layout.endBlockY(c, to) - layout.firstBlockY(c, from);
+            if (blocks == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Fills the offset and length of every channel of the tiles in the
+    // rectangle, reading one span of the tile table per row of tiles.
+    private static void readTileTable(FileChannel channel, Path path, Header header, int tileX0, int tileY0,
+                                      int tileX1, int tileY1, long[] offsets, int[] lengths) throws IOException {
+        int channelCount = header.channels.length;
+        if (header.streamOffsets != null) {
+            System.arraycopy(header.streamOffsets, 0, offsets, 0, channelCount);
+            return;
+        }
+        int entries = (tileX1 - tileX0 + 1) * channelCount;
+        ByteBuffer row = null;
+        for (int tileY = tileY0; tileY <= tileY1; tileY++) {
+            long tile = (long) tileY * header.layout.getTilesX() + tileX0;
+            row = readAt(channel, path, header.tableStart + tile * channelCount * VQFormat.TILE_ENTRY_BYTES,
+                entries * VQFormat.TILE_ENTRY_BYTES, row);
+            for (int i = 0; i < entries; i++) {
+                int entry = (tileY - tileY0) * entries + i;
+                offsets[entry] = row.getLong(i * VQFormat.TILE_ENTRY_BYTES);
+                lengths[entry] = row.getInt(i * VQFormat.TILE_ENTRY_BYTES + 8);
+            }
+        }
+    }
+
+    // Reads length bytes at position into the start of buffer, replacing it
+    // with a larger one when it is too small.
+    private static ByteBuffer readAt(FileChannel channel, Path path, long position, int length, ByteBuffer buffer)
+            throws IOException {
+        if (position < 0 || length < 0 || position > channel.size() - length) {
+            throw new IOException("Truncated VQ file: " + path);
+        }
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+        }
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated VQ file: " + path);
+            }
+        }
+        return buffer.rewind();
+    }
+
+    // Size of a plane covering `size` image pixels, for a plane that is
+    // planeSize samples across an image that is imageSize pixels across.
+    private static int scaledSize(int size, int imageSize, int planeSize) {
+        if (planeSize == imageSize) {
+            return size;
+        }
+        return TileLayout.ceilDiv(size, TileLayout.ceilDiv(imageSize, planeSize));
+    }
+
+    private static class Header {
+        short version;
+        int colorSpace;
+        int blockWidth;
+        int blockHeight;
+        int width;
+        int height;
+        String[] channels;
+        int[] codebookSizes;
+        int[] indexCounts;
+        int[] planeWidths;
+        int[] planeHeights;
+        Map<String, double[][]> codebooks;
+        HuffmanCode[] codes;
+        TileSymbols[] symbols;
+        int[][] references;
+        TileLayout layout;
+        long tableStart;
+        long[] streamOffsets;
+    }
+}
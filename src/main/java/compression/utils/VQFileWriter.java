@@ -0,0 +1,509 @@
+package main.java.compression.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+import main.java.compression.CompressedImage;
+
+public class VQFileWriter {
+    private final boolean embedCodebooks;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final boolean entropyCoded;
+
+    public VQFileWriter() {
+        this(true);
+    }
+
+    public VQFileWriter(boolean embedCodebooks) {
+        this(embedCodebooks, 0, 0);
+    }
+
+    public VQFileWriter(boolean embedCodebooks, int tileWidth, int tileHeight) {
+        this(embedCodebooks, tileWidth, tileHeight, false);
+    }
+
+    // Tiles of tileWidth x tileHeight pixels can be read back on their own
+    // (see VQFileReader.readRegion); 0 stores the whole image as one tile.
+    // Tile sizes must be a multiple of the area one block covers in every
+    // plane, e.g. 4 pixels for 2x2 blocks on half-resolution chroma.
+    // entropyCoded stores each tile with a Huffman code built from the
+    // image's own index counts instead of one or two bytes per index.
+    public VQFileWriter(boolean embedCodebooks, int tileWidth, int tileHeight, boolean entropyCoded) {
+        if (tileWidth < 0 || tileHeight < 0) {
+            throw new IllegalArgumentException("Tile size must not be negative: " + tileWidth + "x" + tileHeight);
+        }
+        this.embedCodebooks = embedCodebooks;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.entropyCoded = entropyCoded;
+    }
+
+    public long write(CompressedImage image, Path path) throws IOException {
+        String[] channels = image.getChannels();
+        int[] planeWidths = new int[channels.length];
+        int[] planeHeights = new int[channels.length];
+        double[][][] codebooks = new double[channels.length][][];
+        for (int c = 0; c < channels.length; c++) {
+            planeWidths[c] = image.getPlaneWidth(c);
+            planeHeights[c] = image.getPlaneHeight(c);
+            codebooks[c] = image.getCodebook(c);
+        }
+        TileLayout layout = layout(image.getWidth(), image.getHeight(), image.getBlockWidth(), image.getBlockHeight(),
+            planeWidths, planeHeights);
+        boolean flatBlocks = image.hasFlatIndices();
+        int[] indexCounts = indexCounts(codebooks, flatBlocks);
+
+        HuffmanCode[] codes = null;
+        byte[][][] tileData = null;
+        int[][] tileLengths = rawTileLengths(layout, indexCounts);
+        boolean referenced = entropyCoded && image.hasReference();
+        if (entropyCoded) {
+            codes = new HuffmanCode[channels.length];
+            tileData = new byte[layout.getTileCount()][channels.length][];
+            long rawBytes = 0;
+            long codedBytes = 0;
+            for (int c = 0; c < channels.length; c++) {
+                TileSymbols symbols = new TileSymbols(codebooks[c].length, VQFormat.quantizeCodebook(codebooks[c]),
+                    codebooks[c][0].length, flatBlocks, referenced);
+                int[] reference = referenced ? image.getReferenceIndices(c) : null;
+                codes[c] = huffmanCode(image.getIndices(c), reference, layout, c, symbols);
+                codedBytes += codes[c].getLengths().length;
+                for (int tile = 0; tile < layout.getTileCount(); tile++) {
+                    tileData[tile][c] = encodeTile(image.getIndices(c), reference, layout, c,
+                        tile % layout.getTilesX(), tile / layout.getTilesX(), codes[c], symbols);
+                    codedBytes += tileData[tile][c].length;
+                    rawBytes += tileLengths[tile][c];
+                }
+            }
+            // Tiny images do not pay for their code length tables.
+            if (codedBytes < rawBytes) {
+                for (int tile = 0; tile < layout.getTileCount(); tile++) {
+                    for (int c = 0; c < channels.length; c++) {
+                        tileLengths[tile][c] = tileData[tile][c].length;
+                    }
+                }
+            } else {
+                codes = null;
+                tileData = null;
+                referenced = false;
+            }
+        }
+
+        ByteBuffer header = header(image.getWidth(), image.getHeight(), image.getColorSpace(),
+            image.getBlockWidth(), image.getBlockHeight(), channels, planeWidths, planeHeights, codebooks, flatBlocks,
+            referenced, codes, layout, tileLengths);
+
+        // Tiles go out in table order through one bounded buffer; only the
+        // header and the entropy-coded tiles are ever held whole.
+        long position = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            position += writeFully(channel, header, position);
+            ByteBuffer buffer = tileData == null ? ByteBuffer.allocate(writeBufferSize(layout, indexCounts)) : null;
+            for (int tileY = 0; tileY < layout.getTilesY(); tileY++) {
+                for (int tileX = 0; tileX < layout.getTilesX(); tileX++) {
+                    for (int c = 0; c < channels.length; c++) {
+                        if (tileData != null) {
+                            position += writeFully(channel,
+                                ByteBuffer.wrap(tileData[tileY * layout.getTilesX() + tileX][c]), position);
+                        } else {
+                            position = writeTile(channel, buffer, position, image.getIndices(c), layout, c,
+                                tileX, tileY, VQFormat.indexBytes(indexCounts[c]));
+                        }
+                    }
+                }
+            }
+        }
+
+        return position;
+    }
+
+    private TileLayout layout(int width, int height, int blockWidth, int blockHeight,
+                              int[] planeWidths, int[] planeHeights) {
+        return new TileLayout(width, height, blockWidth, blockHeight,
+            tileWidth == 0 ? Math.max(1, width) : tileWidth, tileHeight == 0 ? Math.max(1, height) : tileHeight,
+            planeWidths, planeHeights);
+    }
+
+    // Writes the header of an image whose indices arrive later, one strip of
+    // block rows at a time, so the whole index stream never has to be held
+    // in memory. All planes are image-sized. Strips are always stored as
+    // fixed-size indices: a Huffman code needs every index counted before
+    // the header is written.
+    public StripWriter openStrips(Path path, int width, int height, int colorSpace, int blockWidth, int blockHeight,
+                                  String[] channels, Map<String, double[][]> codebooks) throws IOException {
+        return openStrips(path, width, height, colorSpace, blockWidth, blockHeight, channels, codebooks, false);
+    }
+
+    // flatBlocks must be set when the strips may contain flat block indices;
+    // it makes room for them in the index size.
+    public StripWriter openStrips(Path path, int width, int height, int colorSpace, int blockWidth, int blockHeight,
+                                  String[] channels, Map<String, double[][]> codebooks, boolean flatBlocks)
+            throws IOException {
+        int[] planeWidths = new int[channels.length];
+        int[] planeHeights = new int[channels.length];
+        double[][][] channelCodebooks = new double[channels.length][][];
+        Arrays.fill(planeWidths, width);
+        Arrays.fill(planeHeights, height);
+        for (int c = 0; c < channels.length; c++) {
+            channelCodebooks[c] = codebooks.get(channels[c]);
+            if (channelCodebooks[c] == null) {
+                throw new IllegalArgumentException("Missing codebook for channel " + channels[c]);
+            }
+        }
+
+        TileLayout layout = layout(width, height, blockWidth, blockHeight, planeWidths, planeHeights);
+        int[] indexCounts = indexCounts(channelCodebooks, flatBlocks);
+        ByteBuffer header = header(width, height, colorSpace, blockWidth, blockHeight,
+            channels, planeWidths, planeHeights, channelCodebooks, flatBlocks, false, null, layout,
+            rawTileLengths(layout, indexCounts));
+        return new StripWriter(path, header, layout, indexCounts);
+    }
+
+    private static int[] indexCounts(double[][][] codebooks, boolean flatBlocks) {
+        int[] indexCounts = new int[codebooks.length];
+        for (int c = 0; c < codebooks.length; c++) {
+            indexCounts[c] = VQFormat.indexCount(codebooks[c].length, flatBlocks);
+            if (indexCounts[c] > VQFormat.MAX_INDEX_COUNT) {
+                throw new IllegalArgumentException("Codebook of " + codebooks[c].length
+                    + " codewords leaves no room for flat blocks in 16-bit indices");
+            }
+        }
+        return indexCounts;
+    }
+
+    private static int[][] rawTileLengths(TileLayout layout, int[] indexCounts) {
+        int[][] lengths = new int[layout.getTileCount()][indexCounts.length];
+        for (int tile = 0; tile < layout.getTileCount(); tile++) {
+            for (int c = 0; c < indexCounts.length; c++) {
+                long length = (long) layout.tileBlockCount(c, tile % layout.getTilesX(), tile / layout.getTilesX())
+                    * VQFormat.indexBytes(indexCounts[c]);
+                if (length > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Tile of " + length + " bytes does not fit the tile table; "
+                        + "use smaller tiles");
+                }
+                lengths[tile][c] = (int) length;
+            }
+        }
+        return lengths;
+    }
+
+    // The header stores a plane's block count as an int, which a plane of
+    // 2^31 blocks or more would overflow.
+    private static int blockCount(TileLayout layout, int channel) {
+        try {
+            return Math.multiplyExact(layout.getPlaneBlocksPerRow(channel), layout.getPlaneBlockRows(channel));
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Plane of " + layout.getPlaneBlocksPerRow(channel) + "x"
+                + layout.getPlaneBlockRows(channel) + " blocks has too many blocks for a VQ file");
+        }
+    }
+
+    // Fixed header, one header per channel (plus its code lengths when
+    // entropy coded), the tile size and then the tile table: for every tile
+    // (row-major) and channel, the absolute offset and byte length of its
+    // data. Tile data follows in table order.
+    private ByteBuffer header(int width, int height, int colorSpace, int blockWidth, int blockHeight,
+                              String[] channels, int[] planeWidths, int[] planeHeights,
+                              double[][][] codebooks, boolean flatBlocks, boolean referenced, HuffmanCode[] codes,
+                              TileLayout layout, int[][] tileLengths) {
+        byte[][] names = new byte[channels.length][];
+        byte[][] codebookBytes = new byte[channels.length][];
+
+        int size = 4 + 2 + 2 + 1 + 1 + 1 + 1 + 4 + 4;
+        for (int c = 0; c < channels.length; c++) {
+            names[c] = channels[c].getBytes(StandardCharsets.UTF_8);
+            codebookBytes[c] = VQFormat.quantizeCodebook(codebooks[c]);
+            size += 1 + names[c].length + 4 + 1 + 4 + 4 + 4 + 4;
+            if (embedCodebooks) {
+                size += codebookBytes[c].length;
+            }
+            if (codes != null) {
+                size += codes[c].getLengths().length;
+            }
+        }
+        long tableBytes = 4 + 4 + (long) layout.getTileCount() * channels.length * VQFormat.TILE_ENTRY_BYTES;
+        if (size + tableBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Tile table of " + layout.getTileCount() + " tiles is too large; "
+                + "use larger tiles");
+        }
+        size += (int) tableBytes;
+
+        short flags = 0;
+        if (embedCodebooks) {
+            flags |= VQFormat.FLAG_EMBEDDED_CODEBOOK;
+        }
+        if (codes != null) {
+            flags |= VQFormat.FLAG_ENTROPY_CODED;
+        }
+        if (flatBlocks) {
+            flags |= VQFormat.FLAG_FLAT_BLOCKS;
+        }
+        if (referenced) {
+            flags |= VQFormat.FLAG_REFERENCE_FRAME;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(VQFormat.MAGIC);
+        buffer.putShort(VQFormat.VERSION);
+        buffer.putShort(flags);
+        buffer.put((byte) colorSpace);
+        buffer.put((byte) blockWidth);
+        buffer.put((byte) blockHeight);
+        buffer.put((byte) channels.length);
+        buffer.putInt(width);
+        buffer.putInt(height);
+
+        for (int c = 0; c < channels.length; c++) {
+            buffer.put((byte) names[c].length);
+            buffer.put(names[c]);
+            buffer.putInt(codebooks[c].length);
+            buffer.put((byte) codebooks[c][0].length);
+            buffer.putInt(VQFormat.checksum(codebookBytes[c]));
+            buffer.putInt(blockCount(layout, c));
+            buffer.putInt(planeWidths[c]);
+            buffer.putInt(planeHeights[c]);
+            if (embedCodebooks) {
+                buffer.put(codebookBytes[c]);
+            }
+            if (codes != null) {
+                buffer.put(codes[c].getLengths());
+            }
+        }
+
+        buffer.putInt(layout.getTileWidth());
+        buffer.putInt(layout.getTileHeight());
+        long offset = size;
+        for (int[] lengths : tileLengths) {
+            for (int length : lengths) {
+                buffer.putLong(offset);
+                buffer.putInt(length);
+                offset += length;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Symbol counts over every tile, as encodeTile will see them.
+    private static HuffmanCode huffmanCode(int[] indices, int[] reference, TileLayout layout, int channel,
+                                           TileSymbols symbols) {
+        long[] counts = new long[symbols.getSymbolCount()];
+        for (int tileY = 0; tileY < layout.getTilesY(); tileY++) {
+            for (int tileX = 0; tileX < layout.getTilesX(); tileX++) {
+                if (!isReused(indices, reference, layout, channel, tileX, tileY)) {
+                    forEachSymbol(indices, reference, layout, channel, tileX, tileY, symbols,
+                        symbol -> counts[symbol]++);
+                }
+            }
+        }
+        return HuffmanCode.fromCounts(counts);
+    }
+
+    // A tile whose blocks all keep the reference frame's indices is stored
+    // with no data at all.
+    private static byte[] encodeTile(int[] indices, int[] reference, TileLayout layout, int channel,
+                                     int tileX, int tileY, HuffmanCode code, TileSymbols symbols) {
+        if (isReused(indices, reference, layout, channel, tileX, tileY)) {
+            return new byte[0];
+        }
+        HuffmanCode.BitWriter out = new HuffmanCode.BitWriter();
+        forEachSymbol(indices, reference, layout, channel, tileX, tileY, symbols, symbol -> code.write(out, symbol));
+        return out.toByteArray();
+    }
+
+    private static boolean isReused(int[] indices, int[] reference, TileLayout layout, int channel,
+                                    int tileX, int tileY) {
+        if (reference == null) {
+            return false;
+        }
+        int blocksPerRow = layout.getPlaneBlocksPerRow(channel);
+        int fromX = layout.firstBlockX(channel, tileX);
+        int toX = layout.endBlockX(channel, tileX);
+        for (int by = layout.firstBlockY(channel, tileY); by < layout.endBlockY(channel, tileY); by++) {
+            for (int i = by * blocksPerRow + fromX; i < by * blocksPerRow + toX; i++) {
+                if (indices[i] != reference[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void forEachSymbol(int[] indices, int[] reference, TileLayout layout, int channel,
+                                      int tileX, int tileY, TileSymbols symbols, IntConsumer action) {
+        int blocksPerRow = layout.getPlaneBlocksPerRow(channel);
+        int fromX = layout.firstBlockX(channel, tileX);
+        int toX = layout.endBlockX(channel, tileX);
+        int fromY = layout.firstBlockY(channel, tileY);
+        for (int by = fromY; by < layout.endBlockY(channel, tileY); by++) {
+            int start = by * blocksPerRow + fromX;
+            for (int i = start; i < by * blocksPerRow + toX; i++) {
+                action.accept(symbols.symbol(indices, i, blocksPerRow, i == start, by == fromY,
+                    reference == null ? -1 : reference[i]));
+            }
+        }
+    }
+
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    // Large enough for the widest row of blocks of any tile.
+    private static int writeBufferSize(TileLayout layout, int[] indexCounts) {
+        int size = WRITE_BUFFER_BYTES;
+        for (int c = 0; c < indexCounts.length; c++) {
+            for (int tileX = 0; tileX < layout.getTilesX(); tileX++) {
+                size = Math.max(size, (layout.endBlockX(c, tileX) - layout.firstBlockX(c, tileX))
+                    * VQFormat.indexBytes(indexCounts[c]));
+            }
+        }
+        return size;
+    }
+
+    // Writes the fixed-size indices of a tile at position and returns the
+    // position after the tile.
+    private static long writeTile(FileChannel out, ByteBuffer buffer, long position, int[] indices,
+                                  TileLayout layout, int channel, int tileX, int tileY, int indexBytes)
+            throws IOException {
+        int blocksPerRow = layout.getPlaneBlocksPerRow(channel);
+        int fromX = layout.firstBlockX(channel, tileX);
+        int fromY = layout.firstBlockY(channel, tileY);
+        return writeRows(out, buffer, position, indices, fromY * blocksPerRow + fromX, blocksPerRow,
+            layout.endBlockX(channel, tileX) - fromX, layout.endBlockY(channel, tileY) - fromY, indexBytes);
+    }
+
+    // Writes rows of count indices, the first starting at indices[from] and
+    // each next one stride further, at position through buffer, flushing it
+    // whenever the next row does not fit. Returns the position after them.
+    private static long writeRows(FileChannel out, ByteBuffer buffer, long position, int[] indices, int from,
+                                  int stride, int count, int rows, int indexBytes) throws IOException {
+        int rowBytes = count * indexBytes;
+        buffer.clear();
+        for (int row = 0; row < rows; row++) {
+            if (buffer.remaining() < rowBytes) {
+                buffer.flip();
+                position += writeFully(out, buffer, position);
+                buffer.clear();
+            }
+            putIndices(buffer, indices, from + row * stride, count, indexBytes);
+        }
+        buffer.flip();
+        return position + writeFully(out, buffer, position);
+    }
+
+    private static void putIndices(ByteBuffer buffer, int[] indices, int from, int count, int indexBytes) {
+        if (indexBytes == 1) {
+            for (int i = from; i < from + count; i++) {
+                buffer.put((byte) indices[i]);
+            }
+        } else {
+            for (int i = from; i < from + count; i++) {
+                buffer.putShort((short) indices[i]);
+            }
+        }
+    }
+
+    // Returns the number of bytes written.
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    // Every tile has a fixed offset and size once the header is known, so
+    // the rows of a strip are written in place with positional writes.
+    public static class StripWriter implements Closeable {
+        private final FileChannel channel;
+        private final TileLayout layout;
+        private final int[] indexCounts;
+        private final int[] indexBytes;
+        private final long[][] tileOffsets;
+        private final ByteBuffer buffer;
+        private final long size;
+
+        // Same running sum as the tile table in the header.
+        private StripWriter(Path path, ByteBuffer header, TileLayout layout, int[] indexCounts)
+                throws IOException {
+            this.layout = layout;
+            this.indexCounts = indexCounts;
+            this.indexBytes = new int[indexCounts.length];
+            this.tileOffsets = new long[layout.getTileCount()][indexCounts.length];
+            for (int c = 0; c < indexCounts.length; c++) {
+                indexBytes[c] = VQFormat.indexBytes(indexCounts[c]);
+            }
+
+            long offset = header.remaining();
+            for (int tile = 0; tile < layout.getTileCount(); tile++) {
+                for (int c = 0; c < indexCounts.length; c++) {
+                    tileOffsets[tile][c] = offset;
+                    offset += (long) layout.tileBlockCount(c, tile % layout.getTilesX(), tile / layout.getTilesX())
+                        * indexBytes[c];
+                }
+            }
+            this.size = offset;
+            this.buffer = ByteBuffer.allocate(writeBufferSize(layout, indexCounts));
+
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            writeFully(channel, header, 0);
+        }
+
+        public void writeStrip(CompressedImage strip, int firstBlockRow) throws IOException {
+            int blocksPerRow = layout.getPlaneBlocksPerRow(0);
+            int endBlockRow = firstBlockRow + strip.getBlockRows();
+            if (strip.getBlocksPerRow() != blocksPerRow || firstBlockRow < 0
+                    || endBlockRow > layout.getPlaneBlockRows(0)) {
+                throw new IllegalArgumentException("Strip of " + strip.getBlocksPerRow() + "x" + strip.getBlockRows()
+                    + " blocks at row " + firstBlockRow + " does not fit " + blocksPerRow + "x"
+                    + layout.getPlaneBlockRows(0));
+            }
+            for (int c = 0; c < indexCounts.length; c++) {
+                for (int index : strip.getIndices(c)) {
+                    if (index >= indexCounts[c]) {
+                        throw new IllegalArgumentException("Index " + index + " out of range for channel "
+                            + strip.getChannels()[c] + "; open the strips with flat blocks enabled");
+                    }
+                }
+            }
+
+            for (int tileY = 0; tileY < layout.getTilesY(); tileY++) {
+                int tileTop = layout.firstBlockY(0, tileY);
+                int from = Math.max(firstBlockRow, tileTop);
+                int to = Math.min(endBlockRow, layout.endBlockY(0, tileY));
+                if (from >= to) {
+                    continue;
+                }
+                for (int tileX = 0; tileX < layout.getTilesX(); tileX++) {
+                    int fromX = layout.firstBlockX(0, tileX);
+                    int tileBlocksPerRow = layout.endBlockX(0, tileX) - fromX;
+                    for (int c = 0; c < indexBytes.length; c++) {
+                        writeRows(channel, buffer, tileOffsets[tileY * layout.getTilesX() + tileX][c]
+                                + (long) (from - tileTop) * tileBlocksPerRow * indexBytes[c],
+                            strip.getIndices(c), (from - firstBlockRow) * blocksPerRow + fromX, blocksPerRow,
+                            tileBlocksPerRow, to - from, indexBytes[c]);
+                    }
+                }
+            }
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+}
@@ -0,0 +1,76 @@
+package main.java.compression.utils;
+
+import java.util.zip.CRC32;
+
+import main.java.compression.CompressedImage;
+
+final class VQFormat {
+    static final int MAGIC = 0x5651494D; // "VQIM"
+    static final short VERSION = 3;
+    // Version 1 had no per-channel plane dimensions; every plane was image-sized.
+    static final short VERSION_IMAGE_SIZED_PLANES = 1;
+    // Version 2 stored each channel's indices as one stream, without tiles.
+    static final short VERSION_UNTILED = 2;
+
+    // Tile table entry: long offset, int length.
+    static final int TILE_ENTRY_BYTES = 8 + 4;
+
+    static final short FLAG_EMBEDDED_CODEBOOK = 0x1;
+    // Tiles hold Huffman-coded symbols (see TileSymbols) instead of
+    // fixed-size indices. Each channel header is followed by the code
+    // length of every symbol.
+    static final short FLAG_ENTROPY_CODED = 0x2;
+    // Indices may also name flat blocks (CompressedImage.FLAT_LEVELS past
+    // the codebook), which widens every channel's index range.
+    static final short FLAG_FLAT_BLOCKS = 0x4;
+    // An entropy-coded frame of a sequence: its symbols may refer to the
+    // co-located indices of the previous frame, which the reader needs, and
+    // a tile without data keeps all of them.
+    static final short FLAG_REFERENCE_FRAME = 0x8;
+    static final short KNOWN_FLAGS = FLAG_EMBEDDED_CODEBOOK | FLAG_ENTROPY_CODED | FLAG_FLAT_BLOCKS
+        | FLAG_REFERENCE_FRAME;
+
+    // Indices are stored in at most two bytes.
+    static final int MAX_INDEX_COUNT = 65536;
+
+    private VQFormat() {
+    }
+
+    // Distinct index values of a channel: its codewords, plus the flat
+    // block levels when the file has any.
+    static int indexCount(int codebookSize, boolean flatBlocks) {
+        return flatBlocks ? codebookSize + CompressedImage.FLAT_LEVELS : codebookSize;
+    }
+
+    static int indexBytes(int indexCount) {
+        return indexCount <= 256 ? 1 : 2;
+    }
+
+    static byte[] quantizeCodebook(double[][] codebook) {
+        int vectorSize = codebook[0].length;
+        byte[] bytes = new byte[codebook.length * vectorSize];
+        for (int i = 0; i < codebook.length; i++) {
+            for (int j = 0; j < vectorSize; j++) {
+                int value = Math.min(255, Math.max(0, (int) codebook[i][j]));
+                bytes[i * vectorSize + j] = (byte) value;
+            }
+        }
+        return bytes;
+    }
+
+    static double[][] dequantizeCodebook(byte[] bytes, int codebookSize, int vectorSize) {
+        double[][] codebook = new double[codebookSize][vectorSize];
+        for (int i = 0; i < codebookSize; i++) {
+            for (int j = 0; j < vectorSize; j++) {
+                codebook[i][j] = bytes[i * vectorSize + j] & 0xFF;
+            }
+        }
+        return codebook;
+    }
+
+    static int checksum(byte[] codebookBytes) {
+        CRC32 crc = new CRC32();
+        crc.update(codebookBytes);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,150 @@
+package test.java.compression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import main.java.compression.FlatCodebook;
+import main.java.compression.ProjectionIndex;
+import main.java.compression.VectorSupport;
+
+// The Vector API kernel, the scalar loops and ProjectionIndex must select
+// the same codeword for every query, including the lowest index on ties.
+class CodebookSearchTest {
+    // Around and between the common lane counts of 4, 8 and 16 floats.
+    private static final int[] DIMENSIONS = {1, 2, 3, 4, 5, 7, 8, 9, 12, 16, 17, 27, 48, 64};
+    private static final int[] SIZES = {1, 2, 7, 15, 16, 17, 64, 255, 256};
+    private static final int QUERIES = 200;
+
+    @Test
+    void vectorizedSearchIsUsedWhenTheModuleIsPresent() {
+        double[][] codebook = codebook(new Random(1), 16, 4, 256);
+        assertEquals(VectorSupport.isAvailable(), new FlatCodebook(codebook, true).isVectorized());
+        assertFalse(new FlatCodebook(codebook, false).isVectorized());
+    }
+
+    @Test
+    void searchesAgreeOnRandomCodebooks() {
+        assumeTrue(VectorSupport.isAvailable(), "jdk.incubator.vector is not present");
+        Random random = new Random(7);
+        for (int dimension : DIMENSIONS) {
+            for (int size : SIZES) {
+                assertAgree(codebook(random, size, dimension, 256), random, 256);
+            }
+        }
+    }
+
+    // Components from a small range make equal distances to different
+    // codewords common.
+    @Test
+    void searchesAgreeOnTies() {
+        assumeTrue(VectorSupport.isAvailable(), "jdk.incubator.vector is not present");
+        Random random = new Random(11);
+        for (int dimension : DIMENSIONS) {
+            for (int size : SIZES) {
+                assertAgree(codebook(random, size, dimension, 3), random, 3);
+            }
+        }
+    }
+
+    @Test
+    void duplicateCodewordsResolveToTheLowestIndex() {
+        assumeTrue(VectorSupport.isAvailable(), "jdk.incubator.vector is not present");
+        Random random = new Random(13);
+        for (int dimension : DIMENSIONS) {
+            for (int size : SIZES) {
+                double[][] distinct = codebook(random, Math.max(1, size / 3), dimension, 256);
+                double[][] codebook = new double[size][];
+                for (int i = 0; i < size; i++) {
+                    codebook[i] = distinct[(size - 1 - i) % distinct.length];
+                }
+                assertAgree(codebook, random, 256);
+            }
+        }
+    }
+
+    // A query halfway between two codewords is equally far from both.
+    @Test
+    void midpointResolvesToTheLowestIndex() {
+        assumeTrue(VectorSupport.isAvailable(), "jdk.incubator.vector is not present");
+        for (int dimension : DIMENSIONS) {
+            for (int size : SIZES) {
+                double[][] codebook = new double[size][dimension];
+                for (int i = 0; i < size; i++) {
+                    Arrays.fill(codebook[i], 200 - 2 * (i % 2) - 4 * (i / 2));
+                }
+                float[] query = new float[dimension];
+                Arrays.fill(query, 199);
+                int expected = bruteForce(codebook, query);
+                assertEquals(0, expected);
+                assertSearches(codebook, query, expected);
+            }
+        }
+    }
+
+    private static void assertAgree(double[][] codebook, Random random, int range) {
+        int dimension = codebook[0].length;
+        float[] queries = new float[QUERIES * dimension];
+        for (int q = 0; q < QUERIES; q++) {
+            // Half the queries lie near a codeword, half anywhere.
+            double[] near = codebook[random.nextInt(codebook.length)];
+            for (int j = 0; j < dimension; j++) {
+                queries[q * dimension + j] = q % 2 == 0
+                    ? (float) (near[j] + random.nextInt(5) - 2)
+                    : random.nextInt(range);
+            }
+        }
+
+        FlatCodebook vectorized = new FlatCodebook(codebook, true);
+        FlatCodebook scalar = new FlatCodebook(codebook, false);
+        ProjectionIndex projection = new ProjectionIndex(codebook);
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = Arrays.copyOfRange(queries, q * dimension, (q + 1) * dimension);
+            int expected = bruteForce(codebook, query);
+            String message = dimension + "-dimensional codebook of " + codebook.length + ", query " + q;
+            assertEquals(expected, vectorized.findNearest(queries, q * dimension), "SIMD, " + message);
+            assertEquals(expected, scalar.findNearest(queries, q * dimension), "scalar, " + message);
+            assertEquals(expected, projection.findNearest(queries, q * dimension), "projection, " + message);
+        }
+    }
+
+    private static void assertSearches(double[][] codebook, float[] query, int expected) {
+        assertEquals(expected, new FlatCodebook(codebook, true).findNearest(query, 0), "SIMD");
+        assertEquals(expected, new FlatCodebook(codebook, false).findNearest(query, 0), "scalar");
+        assertEquals(expected, new ProjectionIndex(codebook).findNearest(query, 0), "projection");
+    }
+
+    // Lowest index among the nearest codewords, summing squared float
+    // differences in component order like the searches.
+    private static int bruteForce(double[][] codebook, float[] query) {
+        int nearest = 0;
+        float minDist = Float.MAX_VALUE;
+        for (int i = 0; i < codebook.length; i++) {
+            float dist = 0;
+            for (int j = 0; j < query.length; j++) {
+                float diff = query[j] - (float) codebook[i][j];
+                dist += diff * diff;
+            }
+            if (dist < minDist) {
+                minDist = dist;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    private static double[][] codebook(Random random, int size, int dimension, int range) {
+        double[][] codebook = new double[size][dimension];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < dimension; j++) {
+                codebook[i][j] = random.nextInt(range);
+            }
+        }
+        return codebook;
+    }
+}
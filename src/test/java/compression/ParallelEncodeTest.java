@@ -0,0 +1,74 @@
+package test.java.compression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import main.java.compression.ColorSpaceConverter;
+import main.java.compression.CompressedImage;
+import main.java.compression.ImageCompressor;
+import main.java.compression.VQConfig;
+import main.java.compression.YuvPlanes;
+import main.java.compression.utils.PixelAccess;
+
+// Stripes of block rows are encoded and decoded in parallel; the result
+// must not depend on how many threads share the work.
+class ParallelEncodeTest {
+    private static final int[] PARALLELISM = {2, 3, 8};
+
+    // 150 block rows, so every pool splits the image into many stripes,
+    // with a last stripe shorter than the others.
+    private final BufferedImage image = TestImages.synthetic(301, 301, 1);
+
+    @Test
+    void rgbIndicesDoNotDependOnParallelism() {
+        Map<String, double[][]> codebooks = TestImages.rgbCodebooks(image, 256, 2, 2, 1);
+        for (VQConfig config : configs()) {
+            ImageCompressor serial = new ImageCompressor(1, true, config);
+            CompressedImage expected = serial.encodeRGB(image, codebooks);
+            for (int parallelism : PARALLELISM) {
+                ImageCompressor parallel = new ImageCompressor(parallelism, true, config);
+                CompressedImage actual = parallel.encodeRGB(image, codebooks);
+                assertSameImage(expected, actual, config + ", parallelism " + parallelism);
+                assertArrayEquals(PixelAccess.pixels(serial.decode(expected)),
+                    PixelAccess.pixels(parallel.decode(actual)));
+            }
+        }
+    }
+
+    @Test
+    void yuvIndicesDoNotDependOnParallelism() {
+        YuvPlanes planes = new ColorSpaceConverter().toPlanarYuv(image);
+        Map<String, double[][]> codebooks = TestImages.yuvCodebooks(planes, 256, 2, 2, 2);
+        for (VQConfig config : configs()) {
+            ImageCompressor serial = new ImageCompressor(1, true, config);
+            CompressedImage expected = serial.encodeYUV(planes, codebooks);
+            for (int parallelism : PARALLELISM) {
+                ImageCompressor parallel = new ImageCompressor(parallelism, true, config);
+                CompressedImage actual = parallel.encodeYUV(planes, codebooks);
+                assertSameImage(expected, actual, config + ", parallelism " + parallelism);
+                assertArrayEquals(PixelAccess.pixels(serial.decode(expected)),
+                    PixelAccess.pixels(parallel.decode(actual)));
+            }
+        }
+    }
+
+    // Without flat blocks, with flat blocks mapped to codewords, and with
+    // flat blocks coded by their mean.
+    private static VQConfig[] configs() {
+        return new VQConfig[] {
+            new VQConfig(2, 2, 256), new VQConfig(2, 2, 256, 8), new VQConfig(2, 2, 256, 8, true, 0)
+        };
+    }
+
+    private static void assertSameImage(CompressedImage expected, CompressedImage actual, String message) {
+        for (int c = 0; c < expected.getChannels().length; c++) {
+            assertArrayEquals(expected.getIndices(c), actual.getIndices(c), message + ", channel " + c);
+        }
+        assertEquals(expected.getFlatBlockCount(), actual.getFlatBlockCount(), message);
+    }
+}
@@ -0,0 +1,120 @@
+package test.java.compression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import main.java.compression.CompressedImage;
+import main.java.compression.ImageCompressor;
+import main.java.compression.SequenceEncoder;
+import main.java.compression.VQConfig;
+import main.java.compression.utils.PixelAccess;
+import main.java.compression.utils.TileRegion;
+import main.java.compression.utils.VQFileReader;
+import main.java.compression.utils.VQFileWriter;
+
+// Frames coded against the previous frame must read back, in order, to
+// exactly the indices SequenceEncoder produced, with key frames standing
+// on their own.
+class SequenceEncoderTest {
+    private static final int FLAG_REFERENCE_FRAME = 0x8;
+    private static final int FRAMES = 10;
+    private static final int KEY_FRAME_INTERVAL = 4;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void referencedFramesReadBackInOrder() throws IOException {
+        BufferedImage background = TestImages.synthetic(96, 64, 1);
+        Map<String, double[][]> codebooks = TestImages.rgbCodebooks(background, 64, 2, 2, 1);
+        ImageCompressor compressor = new ImageCompressor(1, true, new VQConfig(2, 2, 64));
+        SequenceEncoder sequence = new SequenceEncoder(compressor, codebooks, 16, KEY_FRAME_INTERVAL);
+        VQFileWriter writer = new VQFileWriter(true, 32, 32, true);
+
+        List<CompressedImage> encoded = new ArrayList<>();
+        List<Path> paths = new ArrayList<>();
+        Random random = new Random(2);
+        for (int f = 0; f < FRAMES; f++) {
+            CompressedImage frame = sequence.encodeRGB(frame(background, f, random));
+            Path path = directory.resolve("frame" + f + ".vq");
+            writer.write(frame, path);
+            boolean keyFrame = f % KEY_FRAME_INTERVAL == 0;
+            assertEquals(!keyFrame, frame.hasReference(), "frame " + f);
+            assertEquals(keyFrame ? 0 : FLAG_REFERENCE_FRAME,
+                VQFileRoundTripTest.flags(path) & FLAG_REFERENCE_FRAME, "frame " + f);
+            encoded.add(frame);
+            paths.add(path);
+        }
+        assertTrue(sequence.getReusedBlocks() > 0);
+        assertEquals((long) FRAMES * 48 * 32, sequence.getTotalBlocks());
+
+        VQFileReader reader = new VQFileReader();
+        CompressedImage previous = null;
+        for (int f = 0; f < FRAMES; f++) {
+            CompressedImage read = reader.read(paths.get(f), null, previous);
+            VQFileRoundTripTest.assertRoundTrip(compressor, encoded.get(f), read);
+
+            // A region of a referenced frame needs the whole previous frame.
+            TileRegion region = reader.readRegion(paths.get(f), new Rectangle(40, 20, 30, 30), null, previous);
+            assertArrayEquals(PixelAccess.pixels(compressor.decode(read).getSubimage(40, 20, 30, 30)),
+                PixelAccess.pixels(region.decode(compressor)), "frame " + f);
+            previous = read;
+        }
+    }
+
+    @Test
+    void referencedFrameNeedsThePreviousFrame() throws IOException {
+        BufferedImage background = TestImages.synthetic(96, 64, 3);
+        Map<String, double[][]> codebooks = TestImages.rgbCodebooks(background, 64, 2, 2, 3);
+        ImageCompressor compressor = new ImageCompressor(1, true, new VQConfig(2, 2, 64));
+        SequenceEncoder sequence = new SequenceEncoder(compressor, codebooks, 16, 0);
+        Random random = new Random(4);
+        sequence.encodeRGB(frame(background, 0, random));
+        CompressedImage second = sequence.encodeRGB(frame(background, 1, random));
+        assertTrue(second.hasReference());
+
+        Path path = directory.resolve("second.vq");
+        new VQFileWriter(true, 32, 32, true).write(second, path);
+        assertThrows(IOException.class, () -> new VQFileReader().read(path));
+
+        // Without entropy coding the frame is stored whole.
+        new VQFileWriter(true, 32, 32).write(second, path);
+        assertEquals(0, VQFileRoundTripTest.flags(path) & FLAG_REFERENCE_FRAME);
+        assertFalse(new VQFileReader().read(path).hasReference());
+    }
+
+    // The background with a little noise and a square that moves 6 pixels
+    // per frame.
+    private static BufferedImage frame(BufferedImage background, int index, Random random) {
+        int width = background.getWidth();
+        int height = background.getHeight();
+        BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = background.getRGB(x, y) & 0xFFFFFF;
+                if (x >= 4 + 6 * index && x < 20 + 6 * index && y >= 24 && y < 40) {
+                    pixel = 0xC03020 ^ (x * 7 + y * 3) & 0x1F;
+                } else if (random.nextInt(8) == 0) {
+                    pixel ^= 0x010101;
+                }
+                frame.setRGB(x, y, pixel);
+            }
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,94 @@
+package test.java.compression;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import main.java.compression.YuvPlanes;
+
+// Synthetic images and codebooks for the encoder and file format tests.
+final class TestImages {
+    static final String[] RGB_CHANNELS = {"red", "green", "blue"};
+
+    private TestImages() {
+    }
+
+    // Smooth gradients with a little noise, a flat rectangle and a band of
+    // hard edges, so an image has flat blocks, repeats and busy areas.
+    static BufferedImage synthetic(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red;
+                int green;
+                int blue;
+                if (x < width / 3 && y < height / 3) {
+                    red = 90;
+                    green = 140;
+                    blue = 200;
+                } else if (y > 2 * height / 3) {
+                    red = ((x / 3 + y / 5) % 2) * 255;
+                    green = random.nextInt(256);
+                    blue = (x * 7 + y * 3) % 256;
+                } else {
+                    red = clamp(128 + (int) (100 * Math.sin(x / 17.0 + seed)) + random.nextInt(8));
+                    green = clamp(128 + (int) (100 * Math.cos(y / 23.0)) + random.nextInt(8));
+                    blue = ((x + y) / 5) % 256;
+                }
+                image.setRGB(x, y, red << 16 | green << 8 | blue);
+            }
+        }
+        return image;
+    }
+
+    // RGB codebooks of blocks taken at random from the image itself.
+    static Map<String, double[][]> rgbCodebooks(BufferedImage image, int size, int blockWidth, int blockHeight,
+                                                long seed) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Map<String, double[][]> codebooks = new HashMap<>();
+        for (int c = 0; c < RGB_CHANNELS.length; c++) {
+            byte[] plane = new byte[width * height];
+            int shift = 16 - 8 * c;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    plane[y * width + x] = (byte) (image.getRGB(x, y) >> shift);
+                }
+            }
+            codebooks.put(RGB_CHANNELS[c], sample(plane, width, height, size, blockWidth, blockHeight, seed + c));
+        }
+        return codebooks;
+    }
+
+    static Map<String, double[][]> yuvCodebooks(YuvPlanes planes, int size, int blockWidth, int blockHeight,
+                                                long seed) {
+        Map<String, double[][]> codebooks = new HashMap<>();
+        for (int c = 0; c < YuvPlanes.CHANNELS.length; c++) {
+            codebooks.put(YuvPlanes.CHANNELS[c], sample(planes.getPlane(c), planes.getPlaneWidth(c),
+                planes.getPlaneHeight(c), size, blockWidth, blockHeight, seed + c));
+        }
+        return codebooks;
+    }
+
+    private static double[][] sample(byte[] plane, int width, int height, int size, int blockWidth, int blockHeight,
+                                     long seed) {
+        Random random = new Random(seed);
+        double[][] codebook = new double[size][blockWidth * blockHeight];
+        for (double[] codeword : codebook) {
+            int x = random.nextInt(width / blockWidth) * blockWidth;
+            int y = random.nextInt(height / blockHeight) * blockHeight;
+            for (int dy = 0; dy < blockHeight; dy++) {
+                for (int dx = 0; dx < blockWidth; dx++) {
+                    codeword[dy * blockWidth + dx] = plane[(y + dy) * width + x + dx] & 0xFF;
+                }
+            }
+        }
+        return codebook;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
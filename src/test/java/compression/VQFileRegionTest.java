@@ -0,0 +1,157 @@
+package test.java.compression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import main.java.compression.ColorSpaceConverter;
+import main.java.compression.CompressedImage;
+import main.java.compression.ImageCompressor;
+import main.java.compression.VQConfig;
+import main.java.compression.YuvPlanes;
+import main.java.compression.utils.PixelAccess;
+import main.java.compression.utils.TileRegion;
+import main.java.compression.utils.VQFileReader;
+import main.java.compression.utils.VQFileWriter;
+
+// readRegion must decode to exactly the same pixels as the matching crop of
+// a full decode, and damaged files must fail with an IOException.
+class VQFileRegionTest {
+    @TempDir
+    Path directory;
+
+    private final ImageCompressor compressor = new ImageCompressor(1, true, new VQConfig(2, 2, 64));
+
+    @Test
+    void rgbRegionsMatchTheFullDecode() throws IOException {
+        BufferedImage image = TestImages.synthetic(70, 45, 1);
+        CompressedImage encoded = compressor.encodeRGB(image, TestImages.rgbCodebooks(image, 64, 2, 2, 1));
+        for (boolean entropyCoded : new boolean[] {false, true}) {
+            assertRegionsMatch(encoded, 16, entropyCoded);
+        }
+    }
+
+    // 66 pixels give 33 luma blocks but only 16 chroma blocks across, so
+    // with 4-pixel tiles the last tile column holds no chroma blocks; its
+    // chroma comes from the tile before.
+    @Test
+    void yuvRegionsMatchTheFullDecodeIncludingEmptyChromaTiles() throws IOException {
+        BufferedImage image = TestImages.synthetic(66, 38, 2);
+        YuvPlanes planes = new ColorSpaceConverter().toPlanarYuv(image);
+        CompressedImage encoded = compressor.encodeYUV(planes, TestImages.yuvCodebooks(planes, 64, 2, 2, 2));
+        for (boolean entropyCoded : new boolean[] {false, true}) {
+            assertRegionsMatch(encoded, 4, entropyCoded);
+            assertRegionsMatch(encoded, 8, entropyCoded);
+
+            Path path = directory.resolve("yuv.vq");
+            new VQFileWriter(true, 4, 4, entropyCoded).write(encoded, path);
+            TileRegion edge = new VQFileReader().readRegion(path, new Rectangle(64, 36, 2, 2));
+            assertEquals(60, edge.getX());
+            assertEquals(32, edge.getY());
+        }
+    }
+
+    @Test
+    void truncatedFilesFail() throws IOException {
+        BufferedImage image = TestImages.synthetic(70, 45, 3);
+        CompressedImage encoded = compressor.encodeRGB(image, TestImages.rgbCodebooks(image, 64, 2, 2, 3));
+        for (boolean entropyCoded : new boolean[] {false, true}) {
+            Path path = directory.resolve("whole.vq");
+            new VQFileWriter(true, 16, 16, entropyCoded).write(encoded, path);
+            byte[] bytes = Files.readAllBytes(path);
+            // Inside the fixed header, the codebooks, the tile table and the tiles.
+            for (int length : new int[] {0, 5, 19, 40, 300, bytes.length / 2, bytes.length - 1}) {
+                Path truncated = directory.resolve("truncated.vq");
+                Files.write(truncated, Arrays.copyOf(bytes, length));
+                assertThrows(IOException.class, () -> new VQFileReader().read(truncated), "length " + length);
+                assertThrows(IOException.class, () -> new VQFileReader().readRegion(truncated,
+                    new Rectangle(64, 32, 6, 13)), "length " + length);
+            }
+        }
+    }
+
+    @Test
+    void badCodebookChecksumFails() throws IOException {
+        BufferedImage image = TestImages.synthetic(70, 45, 4);
+        Map<String, double[][]> codebooks = TestImages.rgbCodebooks(image, 64, 2, 2, 4);
+        CompressedImage encoded = compressor.encodeRGB(image, codebooks);
+
+        // The first codebook byte follows the fixed header and the "red"
+        // channel's name, sizes and checksum.
+        Path path = directory.resolve("embedded.vq");
+        new VQFileWriter().write(encoded, path);
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[20 + 1 + 3 + 4 + 1 + 4 + 4 + 4 + 4] ^= 1;
+        Files.write(path, bytes);
+        assertThrows(IOException.class, () -> new VQFileReader().read(path));
+        assertThrows(IOException.class, () -> new VQFileReader().readRegion(path, new Rectangle(0, 0, 8, 8)));
+
+        Path external = directory.resolve("external.vq");
+        new VQFileWriter(false).write(encoded, external);
+        Map<String, double[][]> changed = TestImages.rgbCodebooks(image, 64, 2, 2, 5);
+        assertThrows(IOException.class, () -> new VQFileReader().read(external, changed));
+    }
+
+    // A raw index past the codebook of a file without flat blocks.
+    @Test
+    void indexOutsideTheCodebookFails() throws IOException {
+        BufferedImage image = TestImages.synthetic(70, 45, 5);
+        CompressedImage encoded = compressor.encodeRGB(image, TestImages.rgbCodebooks(image, 64, 2, 2, 5));
+        Path path = directory.resolve("raw.vq");
+        new VQFileWriter(true, 16, 16).write(encoded, path);
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length - 1] = (byte) 200;
+        Files.write(path, bytes);
+        assertThrows(IOException.class, () -> new VQFileReader().read(path));
+        assertThrows(IOException.class, () -> new VQFileReader().readRegion(path, new Rectangle(64, 32, 6, 13)));
+    }
+
+    private void assertRegionsMatch(CompressedImage encoded, int tileSize, boolean entropyCoded) throws IOException {
+        Path path = directory.resolve("tiled.vq");
+        new VQFileWriter(true, tileSize, tileSize, entropyCoded).write(encoded, path);
+        BufferedImage full = compressor.decode(new VQFileReader().read(path));
+        int width = full.getWidth();
+        int height = full.getHeight();
+
+        List<Rectangle> regions = new ArrayList<>();
+        // Every single tile, including the partial ones at the right and bottom.
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                regions.add(new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+            }
+        }
+        regions.add(new Rectangle(0, 0, width, height));
+        regions.add(new Rectangle(width - 1, height - 1, 1, 1));
+        regions.add(new Rectangle(width - 2, 0, 2, height));
+        regions.add(new Rectangle(0, height - 2, width, 2));
+        Random random = new Random(tileSize);
+        for (int i = 0; i < 30; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            regions.add(new Rectangle(x, y, 1 + random.nextInt(width - x), 1 + random.nextInt(height - y)));
+        }
+
+        for (Rectangle region : regions) {
+            TileRegion read = new VQFileReader().readRegion(path, region);
+            assertEquals(region, read.getRequested());
+            assertArrayEquals(
+                PixelAccess.pixels(full.getSubimage(region.x, region.y, region.width, region.height)),
+                PixelAccess.pixels(read.decode(compressor)),
+                region + " with " + tileSize + "-pixel tiles" + (entropyCoded ? ", entropy-coded" : ""));
+        }
+    }
+}
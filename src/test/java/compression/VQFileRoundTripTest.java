@@ -0,0 +1,314 @@
+package test.java.compression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import main.java.compression.ColorSpaceConverter;
+import main.java.compression.CompressedImage;
+import main.java.compression.ImageCompressor;
+import main.java.compression.VQConfig;
+import main.java.compression.YuvPlanes;
+import main.java.compression.utils.PixelAccess;
+import main.java.compression.utils.VQFileReader;
+import main.java.compression.utils.VQFileWriter;
+
+// write -> read -> decode must give back exactly the encoded indices and
+// pixels for every way a .vq file can store them, and files written by
+// older versions must still read.
+class VQFileRoundTripTest {
+    // Header fields as laid out by VQFileWriter.
+    private static final int MAGIC = 0x5651494D;
+    private static final int FLAGS_OFFSET = 6;
+    private static final int FLAG_EMBEDDED_CODEBOOK = 0x1;
+    private static final int FLAG_ENTROPY_CODED = 0x2;
+    private static final int FLAG_FLAT_BLOCKS = 0x4;
+    private static final int MAX_CODE_LENGTH = 24;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void rawIndicesRoundTrip() throws IOException {
+        BufferedImage image = TestImages.synthetic(131, 77, 1);
+        ImageCompressor compressor = new ImageCompressor(2, true, new VQConfig(2, 2, 256));
+        CompressedImage encoded = compressor.encodeRGB(image, TestImages.rgbCodebooks(image, 256, 2, 2, 1));
+
+        for (int tile : new int[] {0, 16, 64}) {
+            Path path = directory.resolve("raw" + tile + ".vq");
+            long bytes = new VQFileWriter(true, tile, tile).write(encoded, path);
+            assertEquals(Files.size(path), bytes);
+            assertEquals(FLAG_EMBEDDED_CODEBOOK, flags(path));
+            assertRoundTrip(compressor, encoded, new VQFileReader().read(path));
+        }
+    }
+
+    @Test
+    void entropyCodedIndicesRoundTrip() throws IOException {
+        BufferedImage image = TestImages.synthetic(263, 171, 2);
+        YuvPlanes planes = new ColorSpaceConverter().toPlanarYuv(image);
+        ImageCompressor compressor = new ImageCompressor(2, true, new VQConfig(2, 2, 64));
+        CompressedImage rgb = compressor.encodeRGB(image, TestImages.rgbCodebooks(image, 64, 2, 2, 2));
+        CompressedImage yuv = compressor.encodeYUV(planes, TestImages.yuvCodebooks(planes, 64, 2, 2, 2));
+
+        for (CompressedImage encoded : new CompressedImage[] {rgb, yuv}) {
+            for (int tile : new int[] {0, 32}) {
+                Path path = directory.resolve("entropy" + tile + ".vq");
+                new VQFileWriter(true, tile, tile, true).write(encoded, path);
+                assertEquals(FLAG_EMBEDDED_CODEBOOK | FLAG_ENTROPY_CODED, flags(path));
+                assertRoundTrip(compressor, encoded, new VQFileReader().read(path));
+            }
+        }
+    }
+
+    // Strips of block rows written in place give the same file as writing
+    // the whole image, whichever tiles they cross.
+    @Test
+    void stripsMatchTheWholeImage() throws IOException {
+        BufferedImage image = TestImages.synthetic(131, 77, 4);
+        Map<String, double[][]> codebooks = TestImages.rgbCodebooks(image, 256, 2, 2, 4);
+        CompressedImage encoded = new ImageCompressor(1, true, new VQConfig(2, 2, 256)).encodeRGB(image, codebooks);
+        int blocksPerRow = encoded.getBlocksPerRow();
+
+        for (int tile : new int[] {0, 16}) {
+            VQFileWriter writer = new VQFileWriter(true, tile, tile);
+            Path whole = directory.resolve("whole.vq");
+            Path strips = directory.resolve("strips.vq");
+            writer.write(encoded, whole);
+            try (VQFileWriter.StripWriter out = writer.openStrips(strips, 131, 77, CompressedImage.COLOR_SPACE_RGB,
+                    2, 2, TestImages.RGB_CHANNELS, codebooks)) {
+                for (int row = 0; row < encoded.getBlockRows(); row += 5) {
+                    int rows = Math.min(5, encoded.getBlockRows() - row);
+                    int[][] indices = new int[3][];
+                    for (int c = 0; c < 3; c++) {
+                        indices[c] = Arrays.copyOfRange(encoded.getIndices(c), row * blocksPerRow,
+                            (row + rows) * blocksPerRow);
+                    }
+                    out.writeStrip(new CompressedImage(131, 2 * rows, CompressedImage.COLOR_SPACE_RGB, 2, 2,
+                        TestImages.RGB_CHANNELS, indices, codebooks), row);
+                }
+                assertEquals(Files.size(whole), out.getSize());
+            }
+            assertArrayEquals(Files.readAllBytes(whole), Files.readAllBytes(strips), "tile " + tile);
+        }
+    }
+
+    // Flat blocks coded by their exact mean take indices past the codebook.
+    @Test
+    void flatIndicesRoundTrip() throws IOException {
+        BufferedImage image = TestImages.synthetic(131, 77, 3);
+        ImageCompressor compressor = new ImageCompressor(2, true, new VQConfig(2, 2, 256, 8, true, 0));
+        CompressedImage encoded = compressor.encodeRGB(image, TestImages.rgbCodebooks(image, 256, 2, 2, 3));
+        assertTrue(encoded.hasFlatIndices());
+
+        for (boolean entropyCoded : new boolean[] {false, true}) {
+            Path path = directory.resolve("flat" + entropyCoded + ".vq");
+            new VQFileWriter(true, 32, 32, entropyCoded).write(encoded, path);
+            assertEquals(FLAG_EMBEDDED_CODEBOOK | FLAG_FLAT_BLOCKS | (entropyCoded ? FLAG_ENTROPY_CODED : 0),
+                flags(path));
+            CompressedImage read = new VQFileReader().read(path);
+            assertRoundTrip(compressor, encoded, read);
+            assertEquals(encoded.getFlatBlockCount(), read.getFlatBlockCount());
+        }
+    }
+
+    // Flat blocks mapped to a codeword keep ordinary 1-byte indices.
+    @Test
+    void flatBlocksWithoutFlatIndicesKeepOneByteIndices() throws IOException {
+        BufferedImage image = TestImages.synthetic(131, 77, 3);
+        Map<String, double[][]> codebooks = TestImages.rgbCodebooks(image, 256, 2, 2, 3);
+        CompressedImage searched = new ImageCompressor(1, true, new VQConfig(2, 2, 256)).encodeRGB(image, codebooks);
+        ImageCompressor compressor = new ImageCompressor(1, true, new VQConfig(2, 2, 256, 8));
+        CompressedImage encoded = compressor.encodeRGB(image, codebooks);
+        assertTrue(encoded.getFlatBlockCount() > 0);
+        assertFalse(encoded.hasFlatIndices());
+
+        Path flat = directory.resolve("flat.vq");
+        Path plain = directory.resolve("plain.vq");
+        new VQFileWriter().write(encoded, flat);
+        new VQFileWriter().write(searched, plain);
+        assertEquals(Files.size(plain), Files.size(flat));
+        assertEquals(FLAG_EMBEDDED_CODEBOOK, flags(flat));
+        assertRoundTrip(compressor, encoded, new VQFileReader().read(flat));
+    }
+
+    // Fibonacci counts give an unconstrained Huffman tree one level deeper
+    // per symbol; 27 symbols would need 26-bit codes, so the counts are
+    // flattened until the code fits. Planes one block wide
+    // make every block a row start, so no block becomes a repeat symbol.
+    @Test
+    void skewedCountsAreCappedAtTheMaximumCodeLength() throws IOException {
+        int symbols = 27;
+        int codebookSize = 32;
+        int[] counts = new int[symbols];
+        counts[0] = 1;
+        counts[1] = 1;
+        int blocks = 2;
+        for (int s = 2; s < symbols; s++) {
+            counts[s] = counts[s - 1] + counts[s - 2];
+            blocks += counts[s];
+        }
+        int[] indices = new int[blocks];
+        for (int s = 0, i = 0; s < symbols; s++) {
+            for (int n = 0; n < counts[s]; n++) {
+                indices[i++] = s;
+            }
+        }
+        Random random = new Random(5);
+        for (int i = blocks - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = indices[i];
+            indices[i] = indices[j];
+            indices[j] = swap;
+        }
+        double[][] codebook = new double[codebookSize][4];
+        for (int i = 0; i < codebookSize; i++) {
+            codebook[i] = new double[] {i * 8, i * 8, i * 8 + 1, i * 8 + 2};
+        }
+        Map<String, double[][]> codebooks = new HashMap<>();
+        for (String channel : TestImages.RGB_CHANNELS) {
+            codebooks.put(channel, codebook);
+        }
+        CompressedImage encoded = new CompressedImage(2, 2 * blocks, CompressedImage.COLOR_SPACE_RGB, 2, 2,
+            TestImages.RGB_CHANNELS, new int[][] {indices, indices, indices}, codebooks);
+
+        Path path = directory.resolve("skewed.vq");
+        new VQFileWriter(true, 0, 0, true).write(encoded, path);
+        assertEquals(FLAG_EMBEDDED_CODEBOOK | FLAG_ENTROPY_CODED, flags(path));
+        int longest = 0;
+        for (byte length : firstCodeLengths(path, codebookSize * 4, codebookSize + 1)) {
+            longest = Math.max(longest, length);
+        }
+        assertTrue(longest <= MAX_CODE_LENGTH, "longest code " + longest);
+
+        CompressedImage read = new VQFileReader().read(path);
+        for (int c = 0; c < TestImages.RGB_CHANNELS.length; c++) {
+            assertArrayEquals(indices, read.getIndices(c));
+        }
+    }
+
+    // Version 1: planes are image-sized and carry no size of their own.
+    // 512 codewords need 2-byte indices.
+    @Test
+    void versionOneFilesStillRead() throws IOException {
+        BufferedImage image = TestImages.synthetic(37, 21, 6);
+        ImageCompressor compressor = new ImageCompressor(1, true, new VQConfig(2, 2, 512));
+        CompressedImage encoded = compressor.encodeRGB(image, TestImages.rgbCodebooks(image, 512, 2, 2, 6));
+        Path path = directory.resolve("v1.vq");
+        Files.write(path, untiledFile(encoded, 1));
+        assertRoundTrip(compressor, encoded, new VQFileReader().read(path));
+    }
+
+    // Version 2: planes have their own size, one untiled stream per channel.
+    @Test
+    void versionTwoFilesStillRead() throws IOException {
+        BufferedImage image = TestImages.synthetic(37, 21, 7);
+        ColorSpaceConverter converter = new ColorSpaceConverter();
+        ImageCompressor compressor = new ImageCompressor(1, true, new VQConfig(2, 2, 256));
+        CompressedImage encoded = compressor.encodeYUV(converter.toPlanarYuv(image),
+            TestImages.yuvCodebooks(converter.toPlanarYuv(image), 256, 2, 2, 7));
+        Path path = directory.resolve("v2.vq");
+        Files.write(path, untiledFile(encoded, 2));
+        assertRoundTrip(compressor, encoded, new VQFileReader().read(path));
+    }
+
+    static void assertRoundTrip(ImageCompressor compressor, CompressedImage expected, CompressedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getColorSpace(), actual.getColorSpace());
+        assertArrayEquals(expected.getChannels(), actual.getChannels());
+        for (int c = 0; c < expected.getChannels().length; c++) {
+            assertArrayEquals(expected.getIndices(c), actual.getIndices(c), "channel " + c);
+            assertEquals(expected.getPlaneWidth(c), actual.getPlaneWidth(c));
+            assertEquals(expected.getPlaneHeight(c), actual.getPlaneHeight(c));
+        }
+        assertArrayEquals(PixelAccess.pixels(compressor.decode(expected)),
+            PixelAccess.pixels(compressor.decode(actual)));
+    }
+
+    static int flags(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(path));
+        assertEquals(MAGIC, header.getInt());
+        return header.getShort(FLAGS_OFFSET);
+    }
+
+    // The Huffman code lengths of the first channel, which follow its
+    // codebook in the header.
+    private static byte[] firstCodeLengths(Path path, int codebookBytes, int symbols) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(path));
+        header.position(4 + 2 + 2 + 1 + 1 + 1 + 1 + 4 + 4);
+        int nameLength = header.get() & 0xFF;
+        header.position(header.position() + nameLength + 4 + 1 + 4 + 4 + 4 + 4 + codebookBytes);
+        byte[] lengths = new byte[symbols];
+        header.get(lengths);
+        return lengths;
+    }
+
+    // A file in the layout of versions 1 and 2: the header without a tile
+    // table, then each channel's indices in one stream, in channel order.
+    private static byte[] untiledFile(CompressedImage image, int version) {
+        String[] channels = image.getChannels();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) version);
+        buffer.putShort((short) FLAG_EMBEDDED_CODEBOOK);
+        buffer.put((byte) image.getColorSpace());
+        buffer.put((byte) image.getBlockWidth());
+        buffer.put((byte) image.getBlockHeight());
+        buffer.put((byte) channels.length);
+        buffer.putInt(image.getWidth());
+        buffer.putInt(image.getHeight());
+        for (int c = 0; c < channels.length; c++) {
+            double[][] codebook = image.getCodebook(c);
+            byte[] codebookBytes = new byte[codebook.length * codebook[0].length];
+            for (int i = 0; i < codebook.length; i++) {
+                for (int j = 0; j < codebook[i].length; j++) {
+                    codebookBytes[i * codebook[i].length + j] = (byte) codebook[i][j];
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(codebookBytes);
+            byte[] name = channels[c].getBytes(StandardCharsets.UTF_8);
+            buffer.put((byte) name.length);
+            buffer.put(name);
+            buffer.putInt(codebook.length);
+            buffer.put((byte) codebook[0].length);
+            buffer.putInt((int) crc.getValue());
+            buffer.putInt(image.getIndices(c).length);
+            if (version > 1) {
+                buffer.putInt(image.getPlaneWidth(c));
+                buffer.putInt(image.getPlaneHeight(c));
+            }
+            buffer.put(codebookBytes);
+        }
+        for (int c = 0; c < channels.length; c++) {
+            boolean twoBytes = image.getCodebook(c).length > 256;
+            for (int index : image.getIndices(c)) {
+                if (twoBytes) {
+                    buffer.putShort((short) index);
+                } else {
+                    buffer.put((byte) index);
+                }
+            }
+        }
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip().get(bytes);
+        return bytes;
+    }
+}